@@ -1,16 +1,69 @@
 package com.alphalab.matchingengine;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 public class OrderMatchingEngine {
+    private static final int NO_TRADE_PRICE = -1;
+    private static final int NO_ACCOUNT = -1;
     private static int autoIncrementId = 0;
     private OrderBook orderBookStorage = new OrderBook();
     private OrderBook modifiedOrderBookStorage;
     private LimitOrder modifiedOrderToMatch;
+    private OrderIdTable orderIdTable = new OrderIdTable();
     private Parser parser = new Parser();
     private OrderBookStringBuilder orderBookStringBuilder = new OrderBookStringBuilder();
+    private BookView bookView = new BookView();
+    private ReplicationPublisher replicationPublisher;
+    private long commandSequence;
+    private int checksumInterval;
+    private StopOrderIndex stopOrderIndex = new StopOrderIndex();
+    private ExpiryWheel expiryWheel = new ExpiryWheel();
+    private CallAuction callAuction = new CallAuction();
+    private RiskStage riskStage = new RiskStage();
+    private LatencyTracer latencyTracer;
 
     /**
      * An interface for order execution.
@@ -31,21 +84,30 @@ public class OrderMatchingEngine {
      */
     class Order {
         private String side;
-        private String orderId;
+        private int orderKey;
         private int quantity;
         private int sortingId;
+        private int accountSlot = NO_ACCOUNT;
 
         public Order(String side, String orderId, int quantity) {
+            this(side, orderIdTable.intern(orderId), quantity);
+        }
+
+        public Order(String side, int orderKey, int quantity) {
             this.side = side;
-            this.orderId = orderId;
+            this.orderKey = orderKey;
             this.quantity = quantity;
             autoIncrementId++;
             this.sortingId = autoIncrementId;
         }
 
         public Order(String side, String orderId, int quantity, int sortingId) {
+            this(side, orderIdTable.intern(orderId), quantity, sortingId);
+        }
+
+        public Order(String side, int orderKey, int quantity, int sortingId) {
             this.side = side;
-            this.orderId = orderId;
+            this.orderKey = orderKey;
             this.quantity = quantity;
             this.sortingId = sortingId;
         }
@@ -54,8 +116,15 @@ public class OrderMatchingEngine {
             return side;
         }
 
+        /**
+         * Rebuilds the id from the order id table, so it is meant for output only.
+         */
         public String getOrderId() {
-            return orderId;
+            return orderIdTable.getOrderId(orderKey);
+        }
+
+        public int getOrderKey() {
+            return orderKey;
         }
 
         public int getQuantity() {
@@ -66,12 +135,16 @@ public class OrderMatchingEngine {
             return sortingId;
         }
 
+        public int getAccountSlot() {
+            return accountSlot;
+        }
+
         public void setSide(String side) {
             this.side = side;
         }
 
         public void setOrderId(String orderId) {
-            this.orderId = orderId;
+            this.orderKey = orderIdTable.intern(orderId);
         }
 
         public void setQuantity(int quantity) {
@@ -82,6 +155,10 @@ public class OrderMatchingEngine {
             this.sortingId = sortingId;
         }
 
+        public void setAccountSlot(int accountSlot) {
+            this.accountSlot = accountSlot;
+        }
+
         public String execute() {
             return null;
         }
@@ -95,29 +172,29 @@ public class OrderMatchingEngine {
             super(side, orderId, quantity);
         }
 
+        public MarketOrder(String side, int orderKey, int quantity) {
+            super(side, orderKey, quantity);
+        }
+
         @Override
         public boolean toMatchBuyOrderQuantityLogic(OrderBook orderBookStorage,
                                                     Order inputSellOrder, LimitOrder orderToMatch) {
-            int currentTradeCost = orderBookStorage.getTradeCost();
             int remainingQuantity = -inputSellOrder.getQuantity() + orderToMatch.getQuantity();
             if (remainingQuantity == 0) {
                 orderBookStorage.removeOrderFromBuyOrderList(orderToMatch);
-                orderBookStorage.setTradeCost(currentTradeCost +
-                        orderToMatch.getQuantity() * orderToMatch.getPrice());
+                orderBookStorage.recordTrade(orderToMatch.getQuantity(), orderToMatch.getPrice());
                 inputSellOrder.setQuantity(0);
                 return false;
             }
             if (remainingQuantity > 0) {
-                orderToMatch.setQuantity(remainingQuantity);
-                orderBookStorage.setTradeCost(currentTradeCost +
-                        inputSellOrder.getQuantity() * orderToMatch.getPrice());
+                orderBookStorage.updateOrderQuantity(orderToMatch, remainingQuantity);
+                orderBookStorage.recordTrade(inputSellOrder.getQuantity(), orderToMatch.getPrice());
                 inputSellOrder.setQuantity(0);
                 return false;
             } else {
                 orderBookStorage.removeOrderFromBuyOrderList(orderToMatch);
                 inputSellOrder.setQuantity(-remainingQuantity);
-                orderBookStorage.setTradeCost(currentTradeCost +
-                        orderToMatch.getQuantity() * orderToMatch.getPrice());
+                orderBookStorage.recordTrade(orderToMatch.getQuantity(), orderToMatch.getPrice());
                 return true;
             }
         }
@@ -125,25 +202,21 @@ public class OrderMatchingEngine {
         @Override
         public boolean toMatchSellOrderQuantityLogic(OrderBook orderBookStorage,
                                                      Order inputBuyOrder, LimitOrder orderToMatch) {
-            int currentTradeCost = orderBookStorage.getTradeCost();
             int remainingQuantity = inputBuyOrder.getQuantity() - orderToMatch.getQuantity();
             if (remainingQuantity == 0) {
                 orderBookStorage.removeOrderFromSellOrderList(orderToMatch);
-                orderBookStorage.setTradeCost(currentTradeCost +
-                        orderToMatch.getQuantity() * orderToMatch.getPrice());
+                orderBookStorage.recordTrade(orderToMatch.getQuantity(), orderToMatch.getPrice());
                 inputBuyOrder.setQuantity(0);
                 return false;
             }
             if (remainingQuantity > 0) {
                 orderBookStorage.removeOrderFromSellOrderList(orderToMatch);
                 inputBuyOrder.setQuantity(remainingQuantity);
-                orderBookStorage.setTradeCost(currentTradeCost +
-                        orderToMatch.getQuantity() * orderToMatch.getPrice());
+                orderBookStorage.recordTrade(orderToMatch.getQuantity(), orderToMatch.getPrice());
                 return true;
             } else {
-                orderToMatch.setQuantity(-remainingQuantity);
-                orderBookStorage.setTradeCost(currentTradeCost +
-                        inputBuyOrder.getQuantity() * orderToMatch.getPrice());
+                orderBookStorage.updateOrderQuantity(orderToMatch, -remainingQuantity);
+                orderBookStorage.recordTrade(inputBuyOrder.getQuantity(), orderToMatch.getPrice());
                 inputBuyOrder.setQuantity(0);
                 return false;
             }
@@ -157,7 +230,7 @@ public class OrderMatchingEngine {
             modifiedOrderBookStorage = new OrderBook(orderBookStorage);
             while (!orderBookStorage.getBuyOrderList().isEmpty()) {
                 LimitOrder orderToMatch = orderBookStorage.getBuyOrderList().poll();
-                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderId(orderToMatch.getOrderId());
+                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderKey(orderToMatch.getOrderKey());
                 if (modifiedOrderToMatch == null) {
                     continue;
                 }
@@ -182,7 +255,7 @@ public class OrderMatchingEngine {
             modifiedOrderBookStorage = new OrderBook(orderBookStorage);
             while (!orderBookStorage.getSellOrderList().isEmpty()) {
                 LimitOrder orderToMatch = orderBookStorage.getSellOrderList().poll();
-                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderId(orderToMatch.getOrderId());
+                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderKey(orderToMatch.getOrderKey());
                 if (modifiedOrderToMatch == null) {
                     continue;
                 }
@@ -220,42 +293,58 @@ public class OrderMatchingEngine {
             this.price = price;
         }
 
+        public LimitOrder(String side, int orderKey, int quantity, int price) {
+            super(side, orderKey, quantity);
+            this.price = price;
+        }
+
         public LimitOrder(String side, String orderId, int quantity, int price, int sortingId) {
             super(side, orderId, quantity, sortingId);
             this.price = price;
         }
 
+        public LimitOrder(String side, int orderKey, int quantity, int price, int sortingId) {
+            super(side, orderKey, quantity, sortingId);
+            this.price = price;
+        }
+
         public LimitOrder(LimitOrder o) {
-            this(o.getSide(), o.getOrderId(), o.getQuantity(), o.getPrice(), o.getSortingId());
+            this(o.getSide(), o.getOrderKey(), o.getQuantity(), o.getPrice(), o.getSortingId());
+            setAccountSlot(o.getAccountSlot());
         }
 
         public int getPrice() {
             return price;
         }
 
+        /**
+         * Returns the order that takes this one's place in the book after a CRP that loses time priority.
+         */
+        public LimitOrder replaceWith(int quantity, int price) {
+            LimitOrder replacement = new LimitOrder(getSide(), getOrderKey(), quantity, price);
+            replacement.setAccountSlot(getAccountSlot());
+            return replacement;
+        }
+
         @Override
         public boolean toMatchBuyOrderQuantityLogic(OrderBook orderBookStorage,
                                                     Order inputSellOrder, LimitOrder orderToMatch) {
-            int currentTradeCost = orderBookStorage.getTradeCost();
             int remainingQuantity = -inputSellOrder.getQuantity() + orderToMatch.getQuantity();
             if (remainingQuantity == 0) {
                 orderBookStorage.removeOrderFromBuyOrderList(orderToMatch);
-                orderBookStorage.setTradeCost(currentTradeCost +
-                        orderToMatch.getQuantity() * orderToMatch.getPrice());
+                orderBookStorage.recordTrade(orderToMatch.getQuantity(), orderToMatch.getPrice());
                 inputSellOrder.setQuantity(0);
                 return false;
             }
             if (remainingQuantity > 0) {
-                orderToMatch.setQuantity(remainingQuantity);
-                orderBookStorage.setTradeCost(currentTradeCost +
-                        inputSellOrder.getQuantity() * orderToMatch.getPrice());
+                orderBookStorage.updateOrderQuantity(orderToMatch, remainingQuantity);
+                orderBookStorage.recordTrade(inputSellOrder.getQuantity(), orderToMatch.getPrice());
                 inputSellOrder.setQuantity(0);
                 return false;
             } else {
                 orderBookStorage.removeOrderFromBuyOrderList(orderToMatch);
                 inputSellOrder.setQuantity(-remainingQuantity);
-                orderBookStorage.setTradeCost(currentTradeCost +
-                        orderToMatch.getQuantity() * orderToMatch.getPrice());
+                orderBookStorage.recordTrade(orderToMatch.getQuantity(), orderToMatch.getPrice());
                 return true;
             }
         }
@@ -263,23 +352,22 @@ public class OrderMatchingEngine {
         @Override
         public boolean toMatchSellOrderQuantityLogic(OrderBook orderBookStorage,
                                                      Order inputBuyOrder, LimitOrder orderToMatch) {
-            int currentTradeCost = orderBookStorage.getTradeCost();
             int remainingQuantity = inputBuyOrder.getQuantity() - orderToMatch.getQuantity();
             int buyPrice = ((LimitOrder) inputBuyOrder).getPrice();
             if (remainingQuantity == 0) {
                 orderBookStorage.removeOrderFromSellOrderList(orderToMatch);
-                orderBookStorage.setTradeCost(currentTradeCost + orderToMatch.getQuantity() * buyPrice);
+                orderBookStorage.recordTrade(orderToMatch.getQuantity(), buyPrice);
                 inputBuyOrder.setQuantity(0);
                 return false;
             }
             if (remainingQuantity > 0) {
                 orderBookStorage.removeOrderFromSellOrderList(orderToMatch);
                 inputBuyOrder.setQuantity(remainingQuantity);
-                orderBookStorage.setTradeCost(currentTradeCost + orderToMatch.getQuantity() * buyPrice);
+                orderBookStorage.recordTrade(orderToMatch.getQuantity(), buyPrice);
                 return true;
             } else {
-                orderToMatch.setQuantity(-remainingQuantity);
-                orderBookStorage.setTradeCost(currentTradeCost + inputBuyOrder.getQuantity() * buyPrice);
+                orderBookStorage.updateOrderQuantity(orderToMatch, -remainingQuantity);
+                orderBookStorage.recordTrade(inputBuyOrder.getQuantity(), buyPrice);
                 inputBuyOrder.setQuantity(0);
                 return false;
             }
@@ -293,7 +381,7 @@ public class OrderMatchingEngine {
             modifiedOrderBookStorage = new OrderBook(orderBookStorage);
             while (!orderBookStorage.getBuyOrderList().isEmpty()) {
                 LimitOrder orderToMatch = orderBookStorage.getBuyOrderList().poll();
-                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderId(orderToMatch.getOrderId());
+                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderKey(orderToMatch.getOrderKey());
                 if (modifiedOrderToMatch == null) {
                     continue;
                 }
@@ -324,7 +412,7 @@ public class OrderMatchingEngine {
             modifiedOrderBookStorage = new OrderBook(orderBookStorage);
             while (!orderBookStorage.getSellOrderList().isEmpty()) {
                 LimitOrder orderToMatch = orderBookStorage.getSellOrderList().poll();
-                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderId(orderToMatch.getOrderId());
+                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderKey(orderToMatch.getOrderKey());
                 if (modifiedOrderToMatch == null) {
                     continue;
                 }
@@ -380,7 +468,7 @@ public class OrderMatchingEngine {
             }
 
             final LimitOrder other = (LimitOrder) obj;
-            if (this.getSide().equals(other.getSide()) && this.getOrderId().equals(other.getOrderId())
+            if (this.getSide().equals(other.getSide()) && this.getOrderKey() == other.getOrderKey()
                     && this.getQuantity() == (other.getQuantity()) && this.getPrice() == other.getPrice()) {
                 return true;
             }
@@ -412,7 +500,7 @@ public class OrderMatchingEngine {
             modifiedOrderBookStorage = new OrderBook(orderBookStorage);
             while (!orderBookStorage.getBuyOrderList().isEmpty()) {
                 LimitOrder orderToMatch = orderBookStorage.getBuyOrderList().poll();
-                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderId(orderToMatch.getOrderId());
+                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderKey(orderToMatch.getOrderKey());
                 if (modifiedOrderToMatch == null) {
                     continue;
                 }
@@ -440,7 +528,7 @@ public class OrderMatchingEngine {
             modifiedOrderBookStorage = new OrderBook(orderBookStorage);
             while (!orderBookStorage.getSellOrderList().isEmpty()) {
                 LimitOrder orderToMatch = orderBookStorage.getSellOrderList().poll();
-                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderId(orderToMatch.getOrderId());
+                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderKey(orderToMatch.getOrderKey());
                 if (modifiedOrderToMatch == null) {
                     continue;
                 }
@@ -495,7 +583,7 @@ public class OrderMatchingEngine {
             modifiedOrderBookStorage = new OrderBook(orderBookStorage);
             while (!orderBookStorage.getBuyOrderList().isEmpty()) {
                 LimitOrder orderToMatch = orderBookStorage.getBuyOrderList().poll();
-                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderId(orderToMatch.getOrderId());
+                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderKey(orderToMatch.getOrderKey());
                 if (modifiedOrderToMatch == null) {
                     continue;
                 }
@@ -513,6 +601,7 @@ public class OrderMatchingEngine {
             if (inputSellOrder.getQuantity() == 0) {
                 orderBookStorage = modifiedOrderBookStorage;
             } else {
+                orderBookStorageDefensiveCopy.restoreOrdersRemovedIn(modifiedOrderBookStorage);
                 orderBookStorage = orderBookStorageDefensiveCopy;
             }
 
@@ -532,7 +621,7 @@ public class OrderMatchingEngine {
             modifiedOrderBookStorage = new OrderBook(orderBookStorage);
             while (!orderBookStorage.getSellOrderList().isEmpty()) {
                 LimitOrder orderToMatch = orderBookStorage.getSellOrderList().poll();
-                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderId(orderToMatch.getOrderId());
+                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderKey(orderToMatch.getOrderKey());
                 if (modifiedOrderToMatch == null) {
                     continue;
                 }
@@ -550,6 +639,7 @@ public class OrderMatchingEngine {
             if (inputBuyOrder.getQuantity() == 0) {
                 orderBookStorage = modifiedOrderBookStorage;
             } else {
+                orderBookStorageDefensiveCopy.restoreOrdersRemovedIn(modifiedOrderBookStorage);
                 orderBookStorage = orderBookStorageDefensiveCopy;
             }
 
@@ -586,24 +676,188 @@ public class OrderMatchingEngine {
         }
 
         public String execute() {
-            orderBookStorage.removeOrderByOrderId(this.getOrderId());
+            orderBookStorage.removeOrderByOrderKey(this.getOrderKey());
+            stopOrderIndex.remove(this.getOrderKey());
+            callAuction.cancel(this.getOrderKey());
             return null;
         }
     }
 
+    /**
+     * Utility mass cancel order for cancelling every resting order of a side, a price range, an id prefix or an
+     * account with one pass over the book. An empty side means both sides. Unless a price range is given, pending
+     * stops and market orders held by an open auction that match are cancelled as well.
+     */
+    class MassCancelOrder extends Order {
+        private String orderIdPrefix;
+        private int minPrice;
+        private int maxPrice;
+        private int ownerSlot;
+
+        public MassCancelOrder(String side, String orderIdPrefix, int minPrice, int maxPrice) {
+            this(side, orderIdPrefix, minPrice, maxPrice, NO_ACCOUNT);
+        }
+
+        public MassCancelOrder(String side, String orderIdPrefix, int minPrice, int maxPrice, int ownerSlot) {
+            super(side, "", 0);
+            this.orderIdPrefix = orderIdPrefix;
+            this.minPrice = minPrice;
+            this.maxPrice = maxPrice;
+            this.ownerSlot = ownerSlot;
+        }
+
+        /**
+         * Returns the number of cancelled orders.
+         */
+        public String execute() {
+            Predicate<Order> ownerFilter = order -> orderIdTable.startsWith(order.getOrderKey(), orderIdPrefix)
+                    && (ownerSlot == NO_ACCOUNT || order.getAccountSlot() == ownerSlot);
+            Predicate<LimitOrder> filter = order -> order.getPrice() >= minPrice && order.getPrice() <= maxPrice
+                    && ownerFilter.test(order);
+            boolean isBuyIncluded = getSide().isEmpty() || getSide().equals(Command.BUY_ORDER_COMMAND);
+            boolean isSellIncluded = getSide().isEmpty() || getSide().equals(Command.SELL_ORDER_COMMAND);
+            int cancelledCount = 0;
+            if (isBuyIncluded && orderBookStorage.getBuyLevels().hasLevelBetween(minPrice, maxPrice)) {
+                cancelledCount += orderBookStorage.removeOrdersFromBuyOrderListIf(filter);
+            }
+            if (isSellIncluded && orderBookStorage.getSellLevels().hasLevelBetween(minPrice, maxPrice)) {
+                cancelledCount += orderBookStorage.removeOrdersFromSellOrderListIf(filter);
+            }
+            // stops and held market orders have no resting price, so a price range leaves them alone
+            if (minPrice == Integer.MIN_VALUE && maxPrice == Integer.MAX_VALUE) {
+                cancelledCount += stopOrderIndex.removeIf(isBuyIncluded, isSellIncluded, ownerFilter);
+                cancelledCount += callAuction.removeIf(isBuyIncluded, isSellIncluded, ownerFilter);
+            }
+            return "" + cancelledCount;
+        }
+    }
+
+    /**
+     * Utility mass quote order for replacing a set of resting orders at once. Every existing order with one of
+     * the quoted ids is cancelled in a single pass over the book, then each quote with a positive quantity is
+     * added without matching. Outside an auction, a quote that would cross the other side is not placed.
+     */
+    class MassQuoteOrder extends Order {
+        private List<LimitOrder> quotes;
+
+        public MassQuoteOrder(String side, String orderId, int quantity, List<LimitOrder> quotes) {
+            super(side, orderId, quantity);
+            this.quotes = quotes;
+        }
+
+        /**
+         * Returns the number of quotes placed.
+         */
+        public String execute() {
+            int[] quotedOrderKeys = new int[quotes.size()];
+            for (int i = 0; i < quotedOrderKeys.length; i++) {
+                quotedOrderKeys[i] = quotes.get(i).getOrderKey();
+            }
+            Arrays.sort(quotedOrderKeys);
+            orderBookStorage.removeOrdersIf(order ->
+                    Arrays.binarySearch(quotedOrderKeys, order.getOrderKey()) >= 0);
+
+            int placedCount = 0;
+            for (LimitOrder quote : quotes) {
+                if (quote.getQuantity() == 0 || !callAuction.isOpen() && isCrossing(quote)) {
+                    continue;
+                }
+                orderBookStorage.addOrderToOrderList(quote);
+                placedCount++;
+            }
+            return "" + placedCount;
+        }
+
+        private boolean isCrossing(LimitOrder quote) {
+            if (quote.getSide().equals(Command.BUY_ORDER_COMMAND)) {
+                int bestAskPrice = orderBookStorage.getSellLevels().getBestPrice();
+                return bestAskPrice != PriceLadder.NO_PRICE && quote.getPrice() >= bestAskPrice;
+            } else {
+                int bestBidPrice = orderBookStorage.getBuyLevels().getBestPrice();
+                return bestBidPrice != PriceLadder.NO_PRICE && quote.getPrice() <= bestBidPrice;
+            }
+        }
+    }
+
+    /**
+     * Utility query order for pricing a hypothetical order without executing it. Walks the aggregated price
+     * levels of the other side from the best one, so it costs one step per level touched, and never copies or
+     * changes the book. Fills are priced the same way execute() would price them: a limit buy at its own limit
+     * price, everything else at the resting level's price. A price of 0 means a market order.
+     * Does not take a sorting id, so queries leave no trace in the book.
+     */
+    class ImpactQueryOrder extends Order {
+        private int price;
+
+        public ImpactQueryOrder(String side, int quantity, int price) {
+            super(side, "", quantity, 0);
+            this.price = price;
+        }
+
+        /**
+         * Returns the fillable quantity, the average fill price, the total cost and the number of levels touched.
+         */
+        public String execute() {
+            boolean isBuy = getSide().equals(Command.BUY_ORDER_COMMAND);
+            boolean isLimit = price != 0;
+            PriceLadder levels = isBuy ? orderBookStorage.getSellLevels() : orderBookStorage.getBuyLevels();
+
+            long remainingQuantity = getQuantity();
+            long filledQuantity = 0;
+            long totalCost = 0;
+            int levelCount = 0;
+            for (int levelPrice = levels.getBestPrice(); levelPrice != PriceLadder.NO_PRICE;
+                 levelPrice = levels.getNextPrice(levelPrice)) {
+                if (remainingQuantity == 0 || isLimit && (isBuy ? levelPrice > price : levelPrice < price)) {
+                    break;
+                }
+                long fillQuantity = Math.min(remainingQuantity, levels.getQuantity(levelPrice));
+                int fillPrice = isBuy && isLimit ? price : levelPrice;
+                filledQuantity += fillQuantity;
+                totalCost += fillQuantity * fillPrice;
+                remainingQuantity -= fillQuantity;
+                levelCount++;
+            }
+
+            double averagePrice = filledQuantity == 0 ? 0 : (double) totalCost / filledQuantity;
+            return filledQuantity + " " + String.format(Locale.ROOT, "%.2f", averagePrice) + " " + totalCost
+                    + " " + levelCount;
+        }
+    }
+
+    /**
+     * Utility checksum order for verifying that two books hold the same resting orders.
+     */
+    class ChecksumOrder extends Order {
+        public ChecksumOrder(String side, String orderId, int quantity) {
+            super(side, orderId, quantity);
+        }
+
+        public String execute() {
+            return Command.CHECKSUM_COMMAND + " " + formatChecksum(orderBookStorage.getChecksum());
+        }
+    }
+
     /**
      * Utility replace order for replacing purpose.
      */
     class ReplaceOrder extends Order {
         private int price;
 
+        /**
+         * Does not take a sorting id, as it may still be rejected by the risk check after parsing.
+         */
         public ReplaceOrder(String side, String orderId, int quantity, int price) {
-            super(side, orderId, quantity);
+            super(side, orderId, quantity, 0);
             this.price = price;
         }
 
+        public int getPrice() {
+            return price;
+        }
+
         public String execute() {
-            orderBookStorage.replaceOrder(this.getOrderId(), this.getQuantity(), price);
+            orderBookStorage.replaceOrder(this.getOrderKey(), this.getQuantity(), price);
             return "";
         }
     }
@@ -644,7 +898,7 @@ public class OrderMatchingEngine {
             modifiedOrderBookStorage = new OrderBook(orderBookStorage);
             while (!orderBookStorage.getBuyOrderList().isEmpty()) {
                 LimitOrder orderToMatch = orderBookStorage.getBuyOrderList().poll();
-                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderId(orderToMatch.getOrderId());
+                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderKey(orderToMatch.getOrderKey());
                 if (modifiedOrderToMatch == null) {
                     continue;
                 }
@@ -667,7 +921,7 @@ public class OrderMatchingEngine {
             modifiedOrderBookStorage = new OrderBook(orderBookStorage);
             while (!orderBookStorage.getBuyOrderList().isEmpty()) {
                 LimitOrder orderToMatch = orderBookStorage.getSellOrderList().poll();
-                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderId(orderToMatch.getOrderId());
+                modifiedOrderToMatch = modifiedOrderBookStorage.getOrderByOrderKey(orderToMatch.getOrderKey());
                 if (modifiedOrderToMatch == null) {
                     continue;
                 }
@@ -704,237 +958,3074 @@ public class OrderMatchingEngine {
     }
 
     /**
-     * OrderBook to store buy and sell orders in two lists.
+     * Good-till-time order model. Rests like a limit order until filled, cancelled or the logical clock
+     * reaches its expiry time. Resting GTT orders are linked into the ExpiryWheel, and unlinked by the book
+     * whenever they leave it.
      */
-    class OrderBook {
-        private PriorityQueue<LimitOrder> buyOrderList;
-        private PriorityQueue<LimitOrder> sellOrderList;
-        private int tradeCost;
+    class GttOrder extends LimitOrder {
+        private final long expiryTime;
+        private GttOrder previousTimer;
+        private GttOrder nextTimer;
+        private int timerSlot;
 
-        public OrderBook() {
-            this.buyOrderList = new PriorityQueue<>();
-            this.sellOrderList = new PriorityQueue<>();
+        public GttOrder(String side, String orderId, int quantity, int price, long expiryTime) {
+            super(side, orderId, quantity, price);
+            this.expiryTime = expiryTime;
+        }
+
+        public GttOrder(String side, int orderKey, int quantity, int price, long expiryTime) {
+            super(side, orderKey, quantity, price);
+            this.expiryTime = expiryTime;
+        }
+
+        public long getExpiryTime() {
+            return expiryTime;
         }
 
         /**
-         * Defensive copy.
+         * The replacement keeps the expiry time; this order's timer went with it when it left the book.
          */
-        public OrderBook(OrderBook ob) {
-            this.buyOrderList = new PriorityQueue<>(ob.buyOrderList);
-            this.sellOrderList = new PriorityQueue<>(ob.sellOrderList);
-            this.tradeCost = ob.tradeCost;
+        @Override
+        public LimitOrder replaceWith(int quantity, int price) {
+            GttOrder replacement = new GttOrder(getSide(), getOrderKey(), quantity, price, expiryTime);
+            replacement.setAccountSlot(getAccountSlot());
+            expiryWheel.schedule(replacement);
+            return replacement;
         }
 
-        public int getTradeCost() {
-            return tradeCost;
+        /**
+         * An order that is already expired on arrival does not rest, like an IOC order.
+         */
+        @Override
+        public String execute() {
+            String output = super.execute();
+            if (getQuantity() == 0) {
+                return output;
+            }
+            if (expiryTime > expiryWheel.getCurrentTime()) {
+                expiryWheel.schedule(this);
+            } else if (getSide().equals(Command.BUY_ORDER_COMMAND)) {
+                orderBookStorage.removeOrderFromBuyOrderList(this);
+            } else {
+                orderBookStorage.removeOrderFromSellOrderList(this);
+            }
+            return output;
         }
+    }
 
-        public void setTradeCost(int tradeCost) {
-            this.tradeCost = tradeCost;
+    /**
+     * Utility clock order for advancing the logical clock that drives GTT expiry.
+     */
+    class ClockOrder extends Order {
+        private long time;
+
+        public ClockOrder(String side, String orderId, int quantity, long time) {
+            super(side, orderId, quantity);
+            this.time = time;
         }
 
-        public PriorityQueue<LimitOrder> getBuyOrderList() {
-            return buyOrderList;
+        public String execute() {
+            expiryWheel.advanceTo(time);
+            return null;
         }
+    }
 
-        public PriorityQueue<LimitOrder> getSellOrderList() {
-            return sellOrderList;
+    /**
+     * Stop order model, kept off the book until the last trade price reaches its trigger price.
+     * A stop without a limit price becomes a market order when triggered, a stop-limit becomes a limit order.
+     */
+    class StopOrder extends Order {
+        private final int triggerPrice;
+        private final int limitPrice;
+        private final boolean isStopLimit;
+
+        public StopOrder(String side, String orderId, int quantity, int triggerPrice) {
+            super(side, orderId, quantity);
+            this.triggerPrice = triggerPrice;
+            this.limitPrice = 0;
+            this.isStopLimit = false;
         }
 
-        public int getSatisfiedQuantitySumOfBuyOrderList(int price) {
-            int sum = 0;
-            for (LimitOrder order : buyOrderList) {
-                if (price <= order.getPrice()) {
-                    sum += order.getQuantity();
+        public StopOrder(String side, String orderId, int quantity, int limitPrice, int triggerPrice) {
+            super(side, orderId, quantity);
+            this.triggerPrice = triggerPrice;
+            this.limitPrice = limitPrice;
+            this.isStopLimit = true;
+        }
+
+        public int getTriggerPrice() {
+            return triggerPrice;
+        }
+
+        public boolean isTriggeredBy(int tradePrice) {
+            if (tradePrice == NO_TRADE_PRICE) {
+                return false;
+            }
+            if (getSide().equals(Command.BUY_ORDER_COMMAND)) {
+                return tradePrice >= triggerPrice;
+            } else {
+                return tradePrice <= triggerPrice;
+            }
+        }
+
+        public Order toTriggeredOrder() {
+            Order triggeredOrder = isStopLimit
+                    ? new LimitOrder(getSide(), getOrderKey(), getQuantity(), limitPrice)
+                    : new MarketOrder(getSide(), getOrderKey(), getQuantity());
+            triggeredOrder.setAccountSlot(getAccountSlot());
+            return triggeredOrder;
+        }
+
+        /**
+         * Executes right away if the market is already through the trigger, otherwise rests in the stop index.
+         */
+        @Override
+        public String execute() {
+            if (!callAuction.isOpen() && isTriggeredBy(orderBookStorage.getLastTradePrice())) {
+                return toTriggeredOrder().execute();
+            }
+            stopOrderIndex.add(this);
+            orderBookStorage.setTradeCost(0);
+            return "" + orderBookStorage.getTradeCost();
+        }
+    }
+
+    /**
+     * Pending stop orders of both sides, sorted by the order in which they trigger.
+     * Buy stops trigger from the lowest trigger price up, sell stops from the highest down, ties by arrival.
+     * Each trade only looks at the head of each side, so untriggered stops are never scanned.
+     */
+    class StopOrderIndex {
+        private final TreeSet<StopOrder> buyStopOrders = new TreeSet<>((o1, o2) ->
+                o1.getTriggerPrice() != o2.getTriggerPrice()
+                        ? Integer.compare(o1.getTriggerPrice(), o2.getTriggerPrice())
+                        : Integer.compare(o1.getSortingId(), o2.getSortingId()));
+        private final TreeSet<StopOrder> sellStopOrders = new TreeSet<>((o1, o2) ->
+                o1.getTriggerPrice() != o2.getTriggerPrice()
+                        ? Integer.compare(o2.getTriggerPrice(), o1.getTriggerPrice())
+                        : Integer.compare(o1.getSortingId(), o2.getSortingId()));
+        private final OrderKeyIndex<StopOrder> stopOrdersByOrderKey = new OrderKeyIndex<>();
+
+        public void add(StopOrder order) {
+            if (order.getSide().equals(Command.BUY_ORDER_COMMAND)) {
+                buyStopOrders.add(order);
+            } else {
+                sellStopOrders.add(order);
+            }
+            stopOrdersByOrderKey.put(order);
+            orderIdTable.retain(order.getOrderKey());
+            riskStage.addOpenQuantity(order, order.getQuantity());
+        }
+
+        public void remove(int orderKey) {
+            StopOrder order = stopOrdersByOrderKey.remove(orderKey);
+            if (order == null) {
+                return;
+            }
+            if (order.getSide().equals(Command.BUY_ORDER_COMMAND)) {
+                buyStopOrders.remove(order);
+            } else {
+                sellStopOrders.remove(order);
+            }
+            orderIdTable.release(order.getOrderKey());
+            riskStage.addOpenQuantity(order, -order.getQuantity());
+        }
+
+        /**
+         * Removes every pending stop of the included sides that matches and returns how many.
+         */
+        public int removeIf(boolean isBuyIncluded, boolean isSellIncluded, Predicate<Order> filter) {
+            int removedCount = 0;
+            if (isBuyIncluded) {
+                removedCount += removeIf(buyStopOrders, filter);
+            }
+            if (isSellIncluded) {
+                removedCount += removeIf(sellStopOrders, filter);
+            }
+            return removedCount;
+        }
+
+        private int removeIf(TreeSet<StopOrder> stopOrders, Predicate<Order> filter) {
+            int sizeBefore = stopOrders.size();
+            stopOrders.removeIf(order -> {
+                if (!filter.test(order)) {
+                    return false;
                 }
+                stopOrdersByOrderKey.remove(order);
+                orderIdTable.release(order.getOrderKey());
+                riskStage.addOpenQuantity(order, -order.getQuantity());
+                return true;
+            });
+            return sizeBefore - stopOrders.size();
+        }
+
+        /**
+         * Executes triggered stops one at a time until none is left, since each may move the last trade price.
+         * Buy stops are checked before sell stops.
+         */
+        public void triggerStopOrders() {
+            if (callAuction.isOpen()) {
+                return;
+            }
+            StopOrder triggeredOrder;
+            while ((triggeredOrder = pollTriggeredOrder()) != null) {
+                triggeredOrder.toTriggeredOrder().execute();
             }
-            return sum;
         }
 
-        public int getSatisfiedQuantitySumOfSellOrderList(int price) {
-            int sum = 0;
-            for (LimitOrder order : sellOrderList) {
-                if (price >= order.getPrice()) {
-                    sum += order.getQuantity();
+        private StopOrder pollTriggeredOrder() {
+            int lastTradePrice = orderBookStorage.getLastTradePrice();
+            TreeSet<StopOrder> stopOrders = buyStopOrders;
+            if (stopOrders.isEmpty() || !stopOrders.first().isTriggeredBy(lastTradePrice)) {
+                stopOrders = sellStopOrders;
+                if (stopOrders.isEmpty() || !stopOrders.first().isTriggeredBy(lastTradePrice)) {
+                    return null;
                 }
             }
-            return sum;
+            StopOrder order = stopOrders.pollFirst();
+            stopOrdersByOrderKey.remove(order.getOrderKey());
+            orderIdTable.release(order.getOrderKey());
+            riskStage.addOpenQuantity(order, -order.getQuantity());
+            return order;
+        }
+    }
+
+    /**
+     * Hashed hierarchical timing wheel of resting GTT orders, driven by the logical clock of CLK commands.
+     * Each of the LEVEL_COUNT levels has SLOT_COUNT slots, a slot on level n covering SLOT_COUNT^n ticks.
+     * Orders are linked into slots through their own timer fields, so scheduling and cancelling are O(1).
+     * Advancing the clock skips straight to the next slot boundary of the lowest non-empty level and moves
+     * a higher level slot down only when its time range begins. Every order that leaves the book is unlinked
+     * by the book itself, so a timer that fires always belongs to a resting order; the orders that fire on one
+     * CLK are removed together in a single pass over each side of the book.
+     */
+    class ExpiryWheel {
+        private static final int SLOT_BITS = 6;
+        private static final int SLOT_COUNT = 1 << SLOT_BITS;
+        private static final int SLOT_MASK = SLOT_COUNT - 1;
+        private static final int LEVEL_COUNT = 4;
+
+        private final GttOrder[] slotHeads = new GttOrder[LEVEL_COUNT * SLOT_COUNT];
+        private final int[] levelSizes = new int[LEVEL_COUNT];
+        private final Set<GttOrder> expiredOrders = Collections.newSetFromMap(new IdentityHashMap<>());
+        private long currentTime;
+
+        public long getCurrentTime() {
+            return currentTime;
         }
 
-        public void removeOrderFromBuyOrderList(Order order) {
-            buyOrderList.remove(order);
+        public void schedule(GttOrder order) {
+            link(order);
         }
 
-        public void removeOrderFromSellOrderList(Order order) {
-            sellOrderList.remove(order);
+        /**
+         * Does nothing if the order's timer has already fired.
+         */
+        public void cancel(GttOrder order) {
+            unlink(order);
         }
 
-        public void removeOrderByOrderId(String orderId) {
-            PriorityQueue<LimitOrder> buyOrderListDefensiveCopy = new PriorityQueue<>(buyOrderList);
-            PriorityQueue<LimitOrder> sellOrderListDefensiveCopy = new PriorityQueue<>(sellOrderList);
-            for (LimitOrder buyOrder : buyOrderListDefensiveCopy) {
-                if (orderId.equals(buyOrder.getOrderId())) {
-                    buyOrderList.remove(buyOrder);
+        /**
+         * Moving the clock backwards is ignored.
+         */
+        public void advanceTo(long time) {
+            while (currentTime < time) {
+                int level = getLowestNonEmptyLevel();
+                if (level < 0) {
+                    currentTime = time;
                     break;
                 }
-            }
-
-            for (LimitOrder sellOrder : sellOrderListDefensiveCopy) {
-                if (orderId.equals(sellOrder.getOrderId())) {
-                    sellOrderList.remove(sellOrder);
+                long levelTicks = 1L << (SLOT_BITS * level);
+                long nextBoundary = (currentTime & -levelTicks) + levelTicks;
+                if (nextBoundary > time) {
+                    currentTime = time;
                     break;
                 }
+                currentTime = nextBoundary;
+                for (int cascadeLevel = LEVEL_COUNT - 1; cascadeLevel > 0; cascadeLevel--) {
+                    if ((currentTime & ((1L << (SLOT_BITS * cascadeLevel)) - 1)) == 0) {
+                        cascade(cascadeLevel);
+                    }
+                }
+                expireSlot((int) currentTime & SLOT_MASK);
             }
-        }
 
-        public LimitOrder getOrderByOrderId(String orderId) {
-            for (LimitOrder buyOrder : buyOrderList) {
-                if (orderId.equals(buyOrder.getOrderId())) {
-                    return buyOrder;
+            if (expiredOrders.isEmpty()) {
+                return;
+            }
+            // one pass over each side that has expired orders, matching them by identity
+            boolean isBuyExpired = false;
+            boolean isSellExpired = false;
+            for (GttOrder order : expiredOrders) {
+                if (order.getSide().equals(Command.BUY_ORDER_COMMAND)) {
+                    isBuyExpired = true;
+                } else {
+                    isSellExpired = true;
                 }
             }
+            if (isBuyExpired) {
+                orderBookStorage.removeOrdersFromBuyOrderListIf(expiredOrders::contains);
+            }
+            if (isSellExpired) {
+                orderBookStorage.removeOrdersFromSellOrderListIf(expiredOrders::contains);
+            }
+            expiredOrders.clear();
+        }
 
-            for (LimitOrder sellOrder : sellOrderList) {
-                if (orderId.equals(sellOrder.getOrderId())) {
-                    return sellOrder;
+        private int getLowestNonEmptyLevel() {
+            for (int level = 0; level < LEVEL_COUNT; level++) {
+                if (levelSizes[level] > 0) {
+                    return level;
                 }
             }
+            return -1;
+        }
 
-            return null;
+        /**
+         * Re-links every order of the current slot on the given level relative to the current time.
+         */
+        private void cascade(int level) {
+            int slotIndex = level * SLOT_COUNT + ((int) (currentTime >>> (SLOT_BITS * level)) & SLOT_MASK);
+            GttOrder order = detachSlot(slotIndex, level);
+            while (order != null) {
+                GttOrder nextOrder = order.nextTimer;
+                link(order);
+                order = nextOrder;
+            }
         }
 
-        public void replaceOrder(String orderId, int quantity, int price) {
-            LimitOrder orderToChange = getOrderByOrderId(orderId);
-            if (orderToChange == null) {
-                return;
+        private void expireSlot(int slot) {
+            GttOrder order = detachSlot(slot, 0);
+            while (order != null) {
+                GttOrder nextOrder = order.nextTimer;
+                order.previousTimer = null;
+                order.nextTimer = null;
+                expiredOrders.add(order);
+                order = nextOrder;
             }
-            int oldQuantity = orderToChange.getQuantity();
-            int oldPrice = orderToChange.getPrice();
+        }
 
-            if (oldPrice == price && quantity <= oldQuantity) {
-                orderToChange.setQuantity(quantity);
-            } else {
-                LimitOrder oldOrder = new LimitOrder(orderToChange);
-                orderBookStorage.removeOrderByOrderId(orderId);
-                orderBookStorage.addOrderToOrderList(new LimitOrder(oldOrder.getSide(), orderId, quantity, price));
+        private GttOrder detachSlot(int slotIndex, int level) {
+            GttOrder head = slotHeads[slotIndex];
+            slotHeads[slotIndex] = null;
+            for (GttOrder order = head; order != null; order = order.nextTimer) {
+                levelSizes[level]--;
             }
+            return head;
         }
 
-        public void addOrderToOrderList(LimitOrder order) {
-            String orderSide = order.getSide();
+        /**
+         * Picks the level whose range covers the time left, or the current top level slot if it is beyond all
+         * levels; that slot is revisited only after a full turn of the top level.
+         */
+        private void link(GttOrder order) {
+            long ticksLeft = order.getExpiryTime() - currentTime;
+            int level = 0;
+            while (level < LEVEL_COUNT - 1 && ticksLeft >= 1L << (SLOT_BITS * (level + 1))) {
+                level++;
+            }
+            long slotTime = ticksLeft >= 1L << (SLOT_BITS * LEVEL_COUNT) ? currentTime : order.getExpiryTime();
+            int slotIndex = level * SLOT_COUNT + ((int) (slotTime >>> (SLOT_BITS * level)) & SLOT_MASK);
+
+            order.timerSlot = slotIndex;
+            order.previousTimer = null;
+            order.nextTimer = slotHeads[slotIndex];
+            if (order.nextTimer != null) {
+                order.nextTimer.previousTimer = order;
+            }
+            slotHeads[slotIndex] = order;
+            levelSizes[level]++;
+        }
 
-            if (orderSide.equals(Command.BUY_ORDER_COMMAND)) {
-                buyOrderList.add(order);
+        private void unlink(GttOrder order) {
+            if (order.previousTimer != null) {
+                order.previousTimer.nextTimer = order.nextTimer;
+            } else if (slotHeads[order.timerSlot] == order) {
+                slotHeads[order.timerSlot] = order.nextTimer;
             } else {
-                sellOrderList.add(order);
+                // already fired
+                return;
             }
+            if (order.nextTimer != null) {
+                order.nextTimer.previousTimer = order.previousTimer;
+            }
+            order.previousTimer = null;
+            order.nextTimer = null;
+            levelSizes[order.timerSlot / SLOT_COUNT]--;
         }
     }
 
     /**
-     * Utility class for command names.
+     * Utility auction order for switching from continuous matching to a call auction.
      */
-    static class Command {
-        static final String SUBMIT_COMMAND = "SUB";
-        static final String CANCEL_COMMAND = "CXL";
-        static final String REPLACE_COMMAND = "CRP";
-        static final String END_COMMAND = "END";
-        static final String LIMIT_ORDER_COMMAND = "LO";
-        static final String MARKET_ORDER_COMMAND = "MO";
-        static final String IOC_ORDER_COMMAND = "IOC";
-        static final String FOK_ORDER_COMMAND = "FOK";
-        static final String BUY_ORDER_COMMAND = "B";
+    class AuctionOrder extends Order {
+        public AuctionOrder(String side, String orderId, int quantity) {
+            super(side, orderId, quantity);
+        }
+
+        public String execute() {
+            callAuction.open();
+            return null;
+        }
+    }
+
+    /**
+     * Utility uncross order for ending a call auction.
+     */
+    class UncrossOrder extends Order {
+        public UncrossOrder(String side, String orderId, int quantity) {
+            super(side, orderId, quantity);
+        }
+
+        public String execute() {
+            return callAuction.uncross();
+        }
+    }
+
+    /**
+     * Call auction mode, collecting orders without matching until they are uncrossed at a single price.
+     */
+    class CallAuction {
+        private boolean isOpen;
+        private final Set<MarketOrder> buyMarketOrders = new LinkedHashSet<>();
+        private final Set<MarketOrder> sellMarketOrders = new LinkedHashSet<>();
+        private final OrderKeyIndex<MarketOrder> marketOrdersByOrderKey = new OrderKeyIndex<>();
+
+        public boolean isOpen() {
+            return isOpen;
+        }
+
+        public void open() {
+            isOpen = true;
+        }
+
+        public boolean accepts(Order order) {
+            return isOpen && (order instanceof LimitOrder || order instanceof MarketOrder);
+        }
+
+        /**
+         * Returns the trade cost, always 0 as nothing matches, or a rejection.
+         */
+        public String add(Order order) {
+            orderBookStorage.setTradeCost(0);
+            if (order instanceof IocOrder || order instanceof FokOrder) {
+                return RiskStage.REJECT_RESPONSE + " not accepted during an auction";
+            }
+            if (order instanceof GttOrder && ((GttOrder) order).getExpiryTime() <= expiryWheel.getCurrentTime()) {
+                return RiskStage.REJECT_RESPONSE + " already expired";
+            }
+            if (order instanceof MarketOrder) {
+                Set<MarketOrder> marketOrders = order.getSide().equals(Command.BUY_ORDER_COMMAND)
+                        ? buyMarketOrders : sellMarketOrders;
+                marketOrders.add((MarketOrder) order);
+                marketOrdersByOrderKey.put((MarketOrder) order);
+                orderIdTable.retain(order.getOrderKey());
+                riskStage.addOpenQuantity(order, order.getQuantity());
+            } else {
+                orderBookStorage.addOrderToOrderList((LimitOrder) order);
+                if (order instanceof GttOrder) {
+                    expiryWheel.schedule((GttOrder) order);
+                }
+            }
+            return "" + orderBookStorage.getTradeCost();
+        }
+
+        public void cancel(int orderKey) {
+            MarketOrder order = marketOrdersByOrderKey.remove(orderKey);
+            if (order == null) {
+                return;
+            }
+            if (order.getSide().equals(Command.BUY_ORDER_COMMAND)) {
+                buyMarketOrders.remove(order);
+            } else {
+                sellMarketOrders.remove(order);
+            }
+            orderIdTable.release(orderKey);
+            riskStage.addOpenQuantity(order, -order.getQuantity());
+        }
+
+        /**
+         * Drops every held market order of the included sides that matches and returns how many.
+         */
+        public int removeIf(boolean isBuyIncluded, boolean isSellIncluded, Predicate<Order> filter) {
+            int removedCount = 0;
+            if (isBuyIncluded) {
+                removedCount += removeIf(buyMarketOrders, filter);
+            }
+            if (isSellIncluded) {
+                removedCount += removeIf(sellMarketOrders, filter);
+            }
+            return removedCount;
+        }
+
+        private int removeIf(Set<MarketOrder> marketOrders, Predicate<Order> filter) {
+            int sizeBefore = marketOrders.size();
+            marketOrders.removeIf(order -> {
+                if (!filter.test(order)) {
+                    return false;
+                }
+                marketOrdersByOrderKey.remove(order);
+                orderIdTable.release(order.getOrderKey());
+                riskStage.addOpenQuantity(order, -order.getQuantity());
+                return true;
+            });
+            return sizeBefore - marketOrders.size();
+        }
+
+        /**
+         * Returns the uncrossing price and the executed volume, both 0 if nothing crosses.
+         * The price executes the most volume; ties go to the smaller imbalance, then to the price closest to the
+         * last trade, then to the lower price. Market orders left over are dropped.
+         */
+        public String uncross() {
+            isOpen = false;
+            orderBookStorage.setTradeCost(0);
+
+            PriceLadder buyLevels = orderBookStorage.getBuyLevels();
+            PriceLadder sellLevels = orderBookStorage.getSellLevels();
+            int[] prices = mergePrices(buyLevels.getPrices(), sellLevels.getPrices());
+            int levelCount = prices.length;
+
+            // demand at a price is every buy willing to pay at least that much, supply every sell willing to
+            // take at most that much
+            long[] demand = new long[levelCount];
+            long cumulativeQuantity = getTotalQuantity(buyMarketOrders);
+            for (int i = levelCount - 1; i >= 0; i--) {
+                cumulativeQuantity += buyLevels.getQuantity(prices[i]);
+                demand[i] = cumulativeQuantity;
+            }
+            long[] supply = new long[levelCount];
+            cumulativeQuantity = getTotalQuantity(sellMarketOrders);
+            for (int i = 0; i < levelCount; i++) {
+                cumulativeQuantity += sellLevels.getQuantity(prices[i]);
+                supply[i] = cumulativeQuantity;
+            }
+
+            int bestLevel = -1;
+            long bestVolume = 0;
+            for (int i = 0; i < levelCount; i++) {
+                long volume = Math.min(demand[i], supply[i]);
+                if (volume > bestVolume || volume > 0 && volume == bestVolume
+                        && isBetterUncrossingLevel(i, bestLevel, prices, demand, supply)) {
+                    bestLevel = i;
+                    bestVolume = volume;
+                }
+            }
+
+            int uncrossingPrice = 0;
+            if (bestLevel >= 0) {
+                uncrossingPrice = prices[bestLevel];
+                fillBuyOrders(bestVolume);
+                fillSellOrders(bestVolume);
+                orderBookStorage.recordTrade((int) bestVolume, uncrossingPrice);
+            }
+            releaseMarketOrders(buyMarketOrders);
+            releaseMarketOrders(sellMarketOrders);
+            return uncrossingPrice + " " + bestVolume;
+        }
+
+        /**
+         * Merges two ascending price lists into one without duplicates.
+         */
+        private int[] mergePrices(int[] buyPrices, int[] sellPrices) {
+            int[] prices = new int[buyPrices.length + sellPrices.length];
+            int levelCount = 0;
+            int i = 0;
+            int j = 0;
+            while (i < buyPrices.length || j < sellPrices.length) {
+                int price;
+                if (j == sellPrices.length || i < buyPrices.length && buyPrices[i] < sellPrices[j]) {
+                    price = buyPrices[i++];
+                } else if (i == buyPrices.length || sellPrices[j] < buyPrices[i]) {
+                    price = sellPrices[j++];
+                } else {
+                    price = buyPrices[i++];
+                    j++;
+                }
+                prices[levelCount++] = price;
+            }
+            return Arrays.copyOf(prices, levelCount);
+        }
+
+        private boolean isBetterUncrossingLevel(int level, int bestLevel, int[] prices, long[] demand,
+                                                long[] supply) {
+            long imbalance = Math.abs(demand[level] - supply[level]);
+            long bestImbalance = Math.abs(demand[bestLevel] - supply[bestLevel]);
+            if (imbalance != bestImbalance) {
+                return imbalance < bestImbalance;
+            }
+            int lastTradePrice = orderBookStorage.getLastTradePrice();
+            if (lastTradePrice == NO_TRADE_PRICE) {
+                return false;
+            }
+            return Math.abs(prices[level] - lastTradePrice) < Math.abs(prices[bestLevel] - lastTradePrice);
+        }
+
+        private void releaseMarketOrders(Set<MarketOrder> marketOrders) {
+            for (MarketOrder order : marketOrders) {
+                marketOrdersByOrderKey.remove(order);
+                orderIdTable.release(order.getOrderKey());
+                riskStage.addOpenQuantity(order, -order.getQuantity());
+            }
+            marketOrders.clear();
+        }
+
+        private long getTotalQuantity(Set<MarketOrder> marketOrders) {
+            long totalQuantity = 0;
+            for (MarketOrder order : marketOrders) {
+                totalQuantity += order.getQuantity();
+            }
+            return totalQuantity;
+        }
+
+        /**
+         * Every buy order up to the volume is known to be priced at or above the uncrossing price, so fills are
+         * taken straight off the top of the heap and only the filled orders are touched.
+         */
+        private void fillBuyOrders(long volume) {
+            long remainingVolume = volume - Math.min(volume, getTotalQuantity(buyMarketOrders));
+            while (remainingVolume > 0) {
+                LimitOrder orderToMatch = orderBookStorage.getBuyOrderList().peek();
+                if (orderToMatch.getQuantity() <= remainingVolume) {
+                    remainingVolume -= orderToMatch.getQuantity();
+                    orderBookStorage.pollFromBuyOrderList();
+                } else {
+                    orderBookStorage.updateOrderQuantity(orderToMatch,
+                            (int) (orderToMatch.getQuantity() - remainingVolume));
+                    remainingVolume = 0;
+                }
+            }
+        }
+
+        private void fillSellOrders(long volume) {
+            long remainingVolume = volume - Math.min(volume, getTotalQuantity(sellMarketOrders));
+            while (remainingVolume > 0) {
+                LimitOrder orderToMatch = orderBookStorage.getSellOrderList().peek();
+                if (orderToMatch.getQuantity() <= remainingVolume) {
+                    remainingVolume -= orderToMatch.getQuantity();
+                    orderBookStorage.pollFromSellOrderList();
+                } else {
+                    orderBookStorage.updateOrderQuantity(orderToMatch,
+                            (int) (orderToMatch.getQuantity() - remainingVolume));
+                    remainingVolume = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Utility account limits order for setting the pre-trade limits of an account. The limits are applied by the
+     * risk check as the command is read, or by a backup as it is replayed, but never when it is executed, so a
+     * LIM still queued for matching cannot undo a newer one.
+     */
+    class AccountLimitsOrder extends Order {
+        private final String account;
+        private final long maxOrderQuantity;
+        private final long maxNotional;
+        private final long maxOpenQuantity;
+
+        public AccountLimitsOrder(String account, long maxOrderQuantity, long maxNotional, long maxOpenQuantity) {
+            super("", "", 0);
+            this.account = account;
+            this.maxOrderQuantity = maxOrderQuantity;
+            this.maxNotional = maxNotional;
+            this.maxOpenQuantity = maxOpenQuantity;
+        }
+
+        public void apply() {
+            riskStage.setLimits(account, maxOrderQuantity, maxNotional, maxOpenQuantity);
+        }
+    }
+
+    /**
+     * Per-account pre-trade limits on order quantity, notional and open quantity per side, unlimited until LIM.
+     */
+    class RiskStage {
+        static final String REJECT_RESPONSE = "REJ";
+        private static final int MAX_ACCOUNTS = 1 << 12;
+        // two cache lines per account, so neighbouring stripes never share one whatever the array alignment
+        private static final int STRIPE_SIZE = 16;
+        private static final int BUY_OPEN_QUANTITY = 0;
+        private static final int SELL_OPEN_QUANTITY = 1;
+        private static final int MAX_ORDER_QUANTITY = 2;
+        private static final int MAX_NOTIONAL = 3;
+        private static final int MAX_OPEN_QUANTITY = 4;
+
+        private final AtomicLongArray stripes = new AtomicLongArray(MAX_ACCOUNTS * STRIPE_SIZE);
+        private final ConcurrentHashMap<String, Integer> accountSlots = new ConcurrentHashMap<>();
+        private final AtomicInteger accountCount = new AtomicInteger();
+
+        /**
+         * Safe to call from any thread. Returns null if the command may go on to matching, otherwise the
+         * rejection to send back. Commands that cannot be parsed are left for the parser to report.
+         * A LIM takes effect here, so that the commands read after it are checked against the new limits.
+         */
+        public String check(String input) {
+            int commandStart = 0;
+            while (commandStart < input.length() && input.charAt(commandStart) <= ' ') {
+                commandStart++;
+            }
+            if (input.startsWith(Command.ACCOUNT_LIMITS_COMMAND + " ", commandStart)) {
+                return applyLimits(input.trim().split(" "));
+            }
+            if (input.indexOf(Command.ACCOUNT_PREFIX) < 0) {
+                return null;
+            }
+            String[] inputWords = input.trim().split(" ");
+            String lastWord = inputWords[inputWords.length - 1];
+            if (!inputWords[0].equals(Command.SUBMIT_COMMAND) || !lastWord.startsWith(Command.ACCOUNT_PREFIX)) {
+                return null;
+            }
+
+            boolean isBuy;
+            int quantity;
+            long price;
+            try {
+                isBuy = inputWords[2].equals(Command.BUY_ORDER_COMMAND);
+                quantity = Integer.parseInt(inputWords[4]);
+                switch (inputWords[1]) {
+                case Command.MARKET_ORDER_COMMAND:
+                    TopOfBook topOfBook = bookView.getTopOfBook();
+                    price = isBuy ? topOfBook.getAskPrice() : topOfBook.getBidPrice();
+                    break;
+                case Command.LIMIT_ORDER_COMMAND:
+                case Command.IOC_ORDER_COMMAND:
+                case Command.FOK_ORDER_COMMAND:
+                case Command.STOP_ORDER_COMMAND:
+                    price = Integer.parseInt(inputWords[5]);
+                    break;
+                case Command.GTT_ORDER_COMMAND:
+                    price = Integer.parseInt(inputWords[5]);
+                    Long.parseLong(inputWords[6]);
+                    break;
+                case Command.STOP_LIMIT_ORDER_COMMAND:
+                    price = Integer.parseInt(inputWords[5]);
+                    Integer.parseInt(inputWords[6]);
+                    break;
+                default:
+                    return null;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                return null;
+            }
+
+            int slot = getAccountSlot(lastWord.substring(Command.ACCOUNT_PREFIX.length()));
+            if (slot == NO_ACCOUNT) {
+                return REJECT_RESPONSE + " too many accounts";
+            }
+            int stripe = slot * STRIPE_SIZE;
+            // a market order against an empty side has no price to be valued at
+            if (inputWords[1].equals(Command.MARKET_ORDER_COMMAND) && price == 0
+                    && stripes.get(stripe + MAX_NOTIONAL) != Long.MAX_VALUE) {
+                return REJECT_RESPONSE + " no reference price";
+            }
+            String rejection = checkOrderLimits(stripe, quantity, price);
+            if (rejection != null) {
+                return rejection;
+            }
+            int openQuantityIndex = stripe + (isBuy ? BUY_OPEN_QUANTITY : SELL_OPEN_QUANTITY);
+            long maxOpenQuantity = stripes.get(stripe + MAX_OPEN_QUANTITY);
+            while (true) {
+                long openQuantity = stripes.get(openQuantityIndex);
+                if (openQuantity + quantity > maxOpenQuantity) {
+                    return REJECT_RESPONSE + " open quantity limit";
+                }
+                if (stripes.compareAndSet(openQuantityIndex, openQuantity, openQuantity + quantity)) {
+                    return null;
+                }
+            }
+        }
+
+        private String applyLimits(String[] inputWords) {
+            long maxOrderQuantity;
+            long maxNotional;
+            long maxOpenQuantity;
+            try {
+                maxOrderQuantity = Long.parseLong(inputWords[2]);
+                maxNotional = Long.parseLong(inputWords[3]);
+                maxOpenQuantity = Long.parseLong(inputWords[4]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                return null;
+            }
+            if (getAccountSlot(inputWords[1]) == NO_ACCOUNT) {
+                return REJECT_RESPONSE + " too many accounts";
+            }
+            setLimits(inputWords[1], maxOrderQuantity, maxNotional, maxOpenQuantity);
+            return null;
+        }
+
+        /**
+         * Called by the matching thread after parsing, as a CRP is checked against the order it replaces, which
+         * only that thread sees as it is. Returns null unless the command is a CRP that changes the price or
+         * quantity of an account's order beyond its limits. Nothing is reserved; the book counts an increase as
+         * it applies the CRP, and a rejected CRP is not sequenced, so backups never check it again.
+         */
+        public String checkReplace(Order parsedOrder) {
+            if (!(parsedOrder instanceof ReplaceOrder)) {
+                return null;
+            }
+            int quantity = parsedOrder.getQuantity();
+            int price = ((ReplaceOrder) parsedOrder).getPrice();
+            OrderStatus status = bookView.getOrderStatus(parsedOrder.getOrderKey());
+            if (status == null || status.getAccountSlot() == NO_ACCOUNT
+                    || (quantity == status.getQuantity() && price == status.getPrice())) {
+                return null;
+            }
+            int stripe = status.getAccountSlot() * STRIPE_SIZE;
+            if ((long) quantity * price > stripes.get(stripe + MAX_NOTIONAL)) {
+                return REJECT_RESPONSE + " notional limit";
+            }
+            if (quantity <= status.getQuantity()) {
+                return null;
+            }
+            if (quantity > stripes.get(stripe + MAX_ORDER_QUANTITY)) {
+                return REJECT_RESPONSE + " order quantity limit";
+            }
+            int openQuantityIndex = stripe + (status.getSide().equals(Command.BUY_ORDER_COMMAND)
+                    ? BUY_OPEN_QUANTITY : SELL_OPEN_QUANTITY);
+            if (stripes.get(openQuantityIndex) + quantity - status.getQuantity()
+                    > stripes.get(stripe + MAX_OPEN_QUANTITY)) {
+                return REJECT_RESPONSE + " open quantity limit";
+            }
+            return null;
+        }
+
+        private String checkOrderLimits(int stripe, int quantity, long price) {
+            if (quantity > stripes.get(stripe + MAX_ORDER_QUANTITY)) {
+                return REJECT_RESPONSE + " order quantity limit";
+            }
+            if (quantity * price > stripes.get(stripe + MAX_NOTIONAL)) {
+                return REJECT_RESPONSE + " notional limit";
+            }
+            return null;
+        }
+
+        /**
+         * Repeats on a backup what a passed check did on the primary: applies the limits of a LIM, or reserves
+         * the quantity of an order.
+         */
+        public void replay(Order order) {
+            if (order instanceof AccountLimitsOrder) {
+                ((AccountLimitsOrder) order).apply();
+            } else {
+                addOpenQuantity(order, order.getQuantity());
+            }
+        }
+
+        /**
+         * Adds to the open quantity of the order's account, or releases it if negative.
+         */
+        public void addOpenQuantity(Order order, long quantity) {
+            if (order.getAccountSlot() == NO_ACCOUNT) {
+                return;
+            }
+            int stripe = order.getAccountSlot() * STRIPE_SIZE;
+            stripes.getAndAdd(stripe + (order.getSide().equals(Command.BUY_ORDER_COMMAND)
+                    ? BUY_OPEN_QUANTITY : SELL_OPEN_QUANTITY), quantity);
+        }
+
+        public void setLimits(String account, long maxOrderQuantity, long maxNotional, long maxOpenQuantity) {
+            int slot = getAccountSlot(account);
+            if (slot == NO_ACCOUNT) {
+                throw new IllegalStateException("Too many accounts!");
+            }
+            int stripe = slot * STRIPE_SIZE;
+            stripes.set(stripe + MAX_ORDER_QUANTITY, maxOrderQuantity);
+            stripes.set(stripe + MAX_NOTIONAL, maxNotional);
+            stripes.set(stripe + MAX_OPEN_QUANTITY, maxOpenQuantity);
+        }
+
+        /**
+         * Returns the slot of the account, registering it on first use, or NO_ACCOUNT if all slots are taken.
+         */
+        public int getAccountSlot(String account) {
+            Integer slot = accountSlots.get(account);
+            if (slot == null) {
+                slot = accountSlots.computeIfAbsent(account, this::registerAccount);
+            }
+            return slot;
+        }
+
+        /**
+         * Returns the slot of an account seen before, or NO_ACCOUNT.
+         */
+        public int findAccountSlot(String account) {
+            return accountSlots.getOrDefault(account, NO_ACCOUNT);
+        }
+
+        private int registerAccount(String account) {
+            int slot = accountCount.getAndIncrement();
+            if (slot >= MAX_ACCOUNTS) {
+                return NO_ACCOUNT;
+            }
+            int stripe = slot * STRIPE_SIZE;
+            stripes.set(stripe + MAX_ORDER_QUANTITY, Long.MAX_VALUE);
+            stripes.set(stripe + MAX_NOTIONAL, Long.MAX_VALUE);
+            stripes.set(stripe + MAX_OPEN_QUANTITY, Long.MAX_VALUE);
+            return slot;
+        }
+    }
+
+    /**
+     * Maps order ids to dense int keys, reused once no order holds them. Changed by the matching thread only;
+     * other threads may only call find(), checked against getModificationSequence() as in BookView.
+     */
+    static class OrderIdTable {
+        private static final int INITIAL_CAPACITY = 1 << 10;
+
+        private final AtomicLong modificationSequence = new AtomicLong();
+        private char[] characters = new char[INITIAL_CAPACITY * 8];
+        private int characterCount;
+        private int freedCharacterCount;
+        // id k is characters[offsets[k]] up to characters[offsets[k] + lengths[k]], a length of -1 marks a free key
+        private int[] offsets = new int[INITIAL_CAPACITY];
+        private int[] lengths = new int[INITIAL_CAPACITY];
+        private int[] hashes = new int[INITIAL_CAPACITY];
+        private int[] referenceCounts = new int[INITIAL_CAPACITY];
+        private int keyCount;
+        private int liveKeyCount;
+        private int[] freeKeys = new int[INITIAL_CAPACITY];
+        private int freeKeyCount;
+        // keys interned or released during the current command, which reclaim() frees if nothing uses them
+        private int[] reclaimableKeys = new int[INITIAL_CAPACITY];
+        private int reclaimableKeyCount;
+        // key + 1 of the id in each slot, 0 if empty; never more than half full
+        private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+        public OrderIdTable() {
+            // the empty id of commands that name no order is used all the time, so it is never freed
+            retain(intern(""));
+        }
+
+        /**
+         * Returns the key of the id, adding it if it is new.
+         */
+        public int intern(String orderId) {
+            int hash = orderId.hashCode();
+            int mask = slots.length - 1;
+            int slot = spread(hash) & mask;
+            while (slots[slot] != 0) {
+                int orderKey = slots[slot] - 1;
+                if (hashes[orderKey] == hash && matches(orderKey, orderId)) {
+                    return orderKey;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            beginModification();
+            int orderKey = add(orderId, hash);
+            slots[slot] = orderKey + 1;
+            if (liveKeyCount * 2 > slots.length) {
+                resize();
+            }
+            endModification();
+            addReclaimableKey(orderKey);
+            return orderKey;
+        }
+
+        /**
+         * Returns the key of the id, or -1 if it is not in the table. See the class comment for other threads.
+         */
+        public int find(String orderId) {
+            int[] currentSlots = slots;
+            int hash = orderId.hashCode();
+            int mask = currentSlots.length - 1;
+            int slot = spread(hash) & mask;
+            // bounded, since a reader racing a change may see the slots in any state
+            for (int probeCount = 0; probeCount < currentSlots.length && currentSlots[slot] != 0; probeCount++) {
+                int orderKey = currentSlots[slot] - 1;
+                if (hashes[orderKey] == hash && matches(orderKey, orderId)) {
+                    return orderKey;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        public long getModificationSequence() {
+            return modificationSequence.getAcquire();
+        }
+
+        public boolean isModifiedSince(long sequence) {
+            VarHandle.loadLoadFence();
+            return modificationSequence.getOpaque() != sequence;
+        }
+
+        public void retain(int orderKey) {
+            referenceCounts[orderKey]++;
+        }
+
+        public void release(int orderKey) {
+            if (--referenceCounts[orderKey] == 0) {
+                addReclaimableKey(orderKey);
+            }
+        }
+
+        /**
+         * Frees every key interned or released during the command that nothing uses any more.
+         */
+        public void reclaim() {
+            if (reclaimableKeyCount == 0) {
+                return;
+            }
+            beginModification();
+            for (int i = 0; i < reclaimableKeyCount; i++) {
+                int orderKey = reclaimableKeys[i];
+                if (lengths[orderKey] >= 0 && referenceCounts[orderKey] == 0) {
+                    free(orderKey);
+                }
+            }
+            reclaimableKeyCount = 0;
+            endModification();
+        }
+
+        public String getOrderId(int orderKey) {
+            return new String(characters, offsets[orderKey], lengths[orderKey]);
+        }
+
+        /**
+         * Returns the String hash code of the id.
+         */
+        public int getHash(int orderKey) {
+            return hashes[orderKey];
+        }
+
+        public boolean startsWith(int orderKey, String prefix) {
+            int offset = offsets[orderKey];
+            if (lengths[orderKey] < prefix.length()) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                if (characters[offset + i] != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean matches(int orderKey, String orderId) {
+            return lengths[orderKey] == orderId.length() && startsWith(orderKey, orderId);
+        }
+
+        private void beginModification() {
+            long sequence = modificationSequence.get();
+            modificationSequence.setOpaque(sequence + 1);
+            VarHandle.storeStoreFence();
+        }
+
+        private void endModification() {
+            modificationSequence.setRelease(modificationSequence.get() + 1);
+        }
+
+        private void addReclaimableKey(int orderKey) {
+            if (reclaimableKeyCount == reclaimableKeys.length) {
+                reclaimableKeys = Arrays.copyOf(reclaimableKeys, reclaimableKeys.length * 2);
+            }
+            reclaimableKeys[reclaimableKeyCount++] = orderKey;
+        }
+
+        private int add(String orderId, int hash) {
+            int orderKey;
+            if (freeKeyCount > 0) {
+                orderKey = freeKeys[--freeKeyCount];
+            } else {
+                if (keyCount == hashes.length) {
+                    int capacity = hashes.length * 2;
+                    offsets = Arrays.copyOf(offsets, capacity);
+                    lengths = Arrays.copyOf(lengths, capacity);
+                    hashes = Arrays.copyOf(hashes, capacity);
+                    referenceCounts = Arrays.copyOf(referenceCounts, capacity);
+                }
+                orderKey = keyCount++;
+            }
+            if (characterCount + orderId.length() > characters.length) {
+                if (freedCharacterCount * 2 >= characterCount) {
+                    compact();
+                }
+                if (characterCount + orderId.length() > characters.length) {
+                    characters = Arrays.copyOf(characters,
+                            Math.max(characters.length * 2, characterCount + orderId.length()));
+                }
+            }
+            orderId.getChars(0, orderId.length(), characters, characterCount);
+            offsets[orderKey] = characterCount;
+            lengths[orderKey] = orderId.length();
+            hashes[orderKey] = hash;
+            referenceCounts[orderKey] = 0;
+            characterCount += orderId.length();
+            liveKeyCount++;
+            return orderKey;
+        }
+
+        /**
+         * Removes the key from its slot by shifting back the entries probed past it, so no tombstones are left.
+         */
+        private void free(int orderKey) {
+            int mask = slots.length - 1;
+            int hole = spread(hashes[orderKey]) & mask;
+            while (slots[hole] != orderKey + 1) {
+                hole = (hole + 1) & mask;
+            }
+            for (int slot = (hole + 1) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                int homeSlot = spread(hashes[slots[slot] - 1]) & mask;
+                if (((slot - homeSlot) & mask) >= ((slot - hole) & mask)) {
+                    slots[hole] = slots[slot];
+                    hole = slot;
+                }
+            }
+            slots[hole] = 0;
+
+            freedCharacterCount += lengths[orderKey];
+            lengths[orderKey] = -1;
+            liveKeyCount--;
+            if (freeKeyCount == freeKeys.length) {
+                freeKeys = Arrays.copyOf(freeKeys, freeKeys.length * 2);
+            }
+            freeKeys[freeKeyCount++] = orderKey;
+        }
+
+        /**
+         * Copies the characters of the ids in use into a fresh array, dropping those of freed ids.
+         */
+        private void compact() {
+            char[] compactedCharacters = new char[characters.length];
+            int compactedCount = 0;
+            for (int orderKey = 0; orderKey < keyCount; orderKey++) {
+                if (lengths[orderKey] < 0) {
+                    continue;
+                }
+                System.arraycopy(characters, offsets[orderKey], compactedCharacters, compactedCount,
+                        lengths[orderKey]);
+                offsets[orderKey] = compactedCount;
+                compactedCount += lengths[orderKey];
+            }
+            characters = compactedCharacters;
+            characterCount = compactedCount;
+            freedCharacterCount = 0;
+        }
+
+        private void resize() {
+            int[] resizedSlots = new int[slots.length * 2];
+            int mask = resizedSlots.length - 1;
+            for (int orderKey = 0; orderKey < keyCount; orderKey++) {
+                if (lengths[orderKey] < 0) {
+                    continue;
+                }
+                int slot = spread(hashes[orderKey]) & mask;
+                while (resizedSlots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                resizedSlots[slot] = orderKey + 1;
+            }
+            slots = resizedSlots;
+        }
+
+        /**
+         * Ids often differ only in their last characters, so the hash is scrambled before it picks a slot.
+         */
+        private static int spread(int hash) {
+            hash *= 0x9e3779b9;
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    /**
+     * Orders indexed directly by their order key, one order per key. As keys are reused, the array only grows
+     * with the number of ids in use at once.
+     */
+    static class OrderKeyIndex<T extends Order> {
+        private Order[] orders = new Order[64];
+
+        @SuppressWarnings("unchecked")
+        public T get(int orderKey) {
+            return orderKey < orders.length ? (T) orders[orderKey] : null;
+        }
+
+        public void put(T order) {
+            if (order.getOrderKey() >= orders.length) {
+                orders = Arrays.copyOf(orders, Math.max(orders.length * 2, order.getOrderKey() + 1));
+            }
+            orders[order.getOrderKey()] = order;
+        }
+
+        public T remove(int orderKey) {
+            T order = get(orderKey);
+            if (order != null) {
+                orders[orderKey] = null;
+            }
+            return order;
+        }
+
+        /**
+         * Removes the order only if its key still maps to it.
+         */
+        public void remove(T order) {
+            if (get(order.getOrderKey()) == order) {
+                orders[order.getOrderKey()] = null;
+            }
+        }
+    }
+
+    /**
+     * Total resting quantity per price level of one side of the book, in a window around the best price.
+     */
+    static class PriceLadder {
+        static final int NO_PRICE = Integer.MIN_VALUE;
+        private static final int WINDOW_SIZE = 256;
+
+        private final boolean isBid;
+        private long[] windowQuantities;
+        private long[] windowBits;
+        private int windowBase;
+        private int windowLevelCount;
+        private TreeMap<Integer, Long> overflowQuantities;
+
+        public PriceLadder(boolean isBid) {
+            this.isBid = isBid;
+            this.windowQuantities = new long[WINDOW_SIZE];
+            this.windowBits = new long[WINDOW_SIZE / Long.SIZE];
+            this.overflowQuantities = new TreeMap<>();
+        }
+
+        /**
+         * Defensive copy.
+         */
+        public PriceLadder(PriceLadder ladder) {
+            this.isBid = ladder.isBid;
+            this.windowQuantities = ladder.windowQuantities.clone();
+            this.windowBits = ladder.windowBits.clone();
+            this.windowBase = ladder.windowBase;
+            this.windowLevelCount = ladder.windowLevelCount;
+            this.overflowQuantities = new TreeMap<>(ladder.overflowQuantities);
+        }
+
+        public int size() {
+            return windowLevelCount + overflowQuantities.size();
+        }
+
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+
+        /**
+         * Returns 0 if there is no level at the price.
+         */
+        public long getQuantity(int price) {
+            if (isInWindow(price)) {
+                return windowQuantities[price - windowBase];
+            }
+            return overflowQuantities.getOrDefault(price, 0L);
+        }
+
+        /**
+         * Returns the highest bid or the lowest ask, or NO_PRICE if the side is empty.
+         */
+        public int getBestPrice() {
+            int index = isBid ? previousWindowIndex(WINDOW_SIZE - 1) : nextWindowIndex(0);
+            if (index >= 0) {
+                return windowBase + index;
+            }
+            if (overflowQuantities.isEmpty()) {
+                return NO_PRICE;
+            }
+            return isBid ? overflowQuantities.lastKey() : overflowQuantities.firstKey();
+        }
+
+        /**
+         * Returns the next level away from the best price, or NO_PRICE if the given level is the last.
+         * From a level in the window, every price up to the next window level is in the window too, so the
+         * overflow map is only consulted once the window has no further level.
+         */
+        public int getNextPrice(int price) {
+            if (isInWindow(price)) {
+                int index = isBid ? (price == windowBase ? -1 : previousWindowIndex(price - windowBase - 1))
+                        : nextWindowIndex(price - windowBase + 1);
+                if (index >= 0) {
+                    return windowBase + index;
+                }
+                Integer overflowPrice = isBid ? overflowQuantities.lowerKey(price)
+                        : overflowQuantities.higherKey(price);
+                return overflowPrice == null ? NO_PRICE : overflowPrice;
+            }
+            if (isBid) {
+                return price == Integer.MIN_VALUE ? NO_PRICE : getFloorPrice(price - 1);
+            }
+            return price == Integer.MAX_VALUE ? NO_PRICE : getCeilingPrice(price + 1);
+        }
+
+        public boolean hasLevelBetween(int minPrice, int maxPrice) {
+            int price = getCeilingPrice(minPrice);
+            return price != NO_PRICE && price <= maxPrice;
+        }
+
+        /**
+         * Returns the prices of all levels in ascending order.
+         */
+        public int[] getPrices() {
+            int[] prices = new int[size()];
+            int levelCount = 0;
+            for (int price = getCeilingPrice(Integer.MIN_VALUE); price != NO_PRICE;
+                 price = price == Integer.MAX_VALUE ? NO_PRICE : getCeilingPrice(price + 1)) {
+                prices[levelCount++] = price;
+            }
+            return prices;
+        }
+
+        /**
+         * Adds the quantity to the level at the price, creating or removing the level as needed.
+         */
+        public void add(int price, long quantity) {
+            if (quantity == 0) {
+                return;
+            }
+            boolean isLevelChanged;
+            if (isInWindow(price)) {
+                int index = price - windowBase;
+                long levelQuantity = windowQuantities[index] + quantity;
+                windowQuantities[index] = levelQuantity;
+                if (levelQuantity == 0) {
+                    windowBits[index >>> 6] &= ~(1L << index);
+                    windowLevelCount--;
+                    isLevelChanged = true;
+                } else {
+                    isLevelChanged = levelQuantity == quantity;
+                    if (isLevelChanged) {
+                        windowBits[index >>> 6] |= 1L << index;
+                        windowLevelCount++;
+                    }
+                }
+            } else {
+                long levelQuantity = overflowQuantities.getOrDefault(price, 0L) + quantity;
+                isLevelChanged = levelQuantity == 0 || levelQuantity == quantity;
+                if (levelQuantity == 0) {
+                    overflowQuantities.remove(price);
+                } else {
+                    overflowQuantities.put(price, levelQuantity);
+                }
+            }
+
+            // getBestPrice() trusts the window, so the window is moved before the best price can be outside it
+            if (isLevelChanged) {
+                if (windowLevelCount == 0 && !overflowQuantities.isEmpty()) {
+                    recentre(isBid ? overflowQuantities.lastKey() : overflowQuantities.firstKey());
+                } else if (quantity > 0 && isBetterThanWindow(price)) {
+                    recentre(price);
+                }
+            }
+        }
+
+        private boolean isInWindow(int price) {
+            return price >= windowBase && (long) price - windowBase < WINDOW_SIZE;
+        }
+
+        private boolean isBetterThanWindow(int price) {
+            return isBid ? (long) price - windowBase >= WINDOW_SIZE : price < windowBase;
+        }
+
+        /**
+         * Moves every window level into the overflow map, then pulls the levels of the new window back out.
+         * Only runs when the best price leaves the window, and costs one step per level moved.
+         */
+        private void recentre(int bestPrice) {
+            for (int index = nextWindowIndex(0); index >= 0; index = nextWindowIndex(index + 1)) {
+                overflowQuantities.put(windowBase + index, windowQuantities[index]);
+                windowQuantities[index] = 0;
+            }
+            Arrays.fill(windowBits, 0);
+            windowLevelCount = 0;
+
+            long base = (long) bestPrice - (isBid ? WINDOW_SIZE - WINDOW_SIZE / 4 - 1 : WINDOW_SIZE / 4);
+            windowBase = (int) Math.max(Integer.MIN_VALUE, Math.min(base, (long) Integer.MAX_VALUE - WINDOW_SIZE + 1));
+            Map<Integer, Long> windowLevels = overflowQuantities.subMap(windowBase, true,
+                    windowBase + WINDOW_SIZE - 1, true);
+            for (Map.Entry<Integer, Long> level : windowLevels.entrySet()) {
+                int index = level.getKey() - windowBase;
+                windowQuantities[index] = level.getValue();
+                windowBits[index >>> 6] |= 1L << index;
+                windowLevelCount++;
+            }
+            windowLevels.clear();
+        }
+
+        private int getCeilingPrice(int price) {
+            Integer overflowPrice = overflowQuantities.ceilingKey(price);
+            int index = price <= windowBase ? 0 : (long) price - windowBase < WINDOW_SIZE ? price - windowBase : -1;
+            index = index < 0 ? -1 : nextWindowIndex(index);
+            if (index < 0) {
+                return overflowPrice == null ? NO_PRICE : overflowPrice;
+            }
+            return overflowPrice == null ? windowBase + index : Math.min(windowBase + index, overflowPrice);
+        }
+
+        private int getFloorPrice(int price) {
+            Integer overflowPrice = overflowQuantities.floorKey(price);
+            int index = price < windowBase ? -1 : (long) price - windowBase < WINDOW_SIZE
+                    ? price - windowBase : WINDOW_SIZE - 1;
+            index = index < 0 ? -1 : previousWindowIndex(index);
+            if (index < 0) {
+                return overflowPrice == null ? NO_PRICE : overflowPrice;
+            }
+            return overflowPrice == null ? windowBase + index : Math.max(windowBase + index, overflowPrice);
+        }
+
+        /**
+         * Returns the first non-empty window index at or after the given one, or -1.
+         */
+        private int nextWindowIndex(int index) {
+            if (index >= WINDOW_SIZE) {
+                return -1;
+            }
+            int word = index >>> 6;
+            long bits = windowBits[word] & (-1L << index);
+            while (bits == 0) {
+                if (++word == windowBits.length) {
+                    return -1;
+                }
+                bits = windowBits[word];
+            }
+            return (word << 6) + Long.numberOfTrailingZeros(bits);
+        }
+
+        /**
+         * Returns the last non-empty window index at or before the given one, or -1.
+         */
+        private int previousWindowIndex(int index) {
+            int word = index >>> 6;
+            long bits = windowBits[word] & (-1L >>> (63 - (index & 63)));
+            while (bits == 0) {
+                if (--word < 0) {
+                    return -1;
+                }
+                bits = windowBits[word];
+            }
+            return (word << 6) + 63 - Long.numberOfLeadingZeros(bits);
+        }
+    }
+
+    /**
+     * OrderBook to store buy and sell orders in two lists.
+     * Also keeps the total quantity per price level in a PriceLadder per side and an order-independent checksum
+     * of all resting orders, both updated on every change.
+     */
+    class OrderBook {
+        private PriorityQueue<LimitOrder> buyOrderList;
+        private PriorityQueue<LimitOrder> sellOrderList;
+        private PriceLadder buyLevels;
+        private PriceLadder sellLevels;
+        private int tradeCost;
+        private int lastTradePrice = NO_TRADE_PRICE;
+        private long checksum;
+
+        public OrderBook() {
+            this.buyOrderList = new PriorityQueue<>();
+            this.sellOrderList = new PriorityQueue<>();
+            this.buyLevels = new PriceLadder(true);
+            this.sellLevels = new PriceLadder(false);
+        }
+
+        /**
+         * Defensive copy.
+         */
+        public OrderBook(OrderBook ob) {
+            this.buyOrderList = new PriorityQueue<>(ob.buyOrderList);
+            this.sellOrderList = new PriorityQueue<>(ob.sellOrderList);
+            this.buyLevels = new PriceLadder(ob.buyLevels);
+            this.sellLevels = new PriceLadder(ob.sellLevels);
+            this.tradeCost = ob.tradeCost;
+            this.lastTradePrice = ob.lastTradePrice;
+            this.checksum = ob.checksum;
+        }
+
+        public int getTradeCost() {
+            return tradeCost;
+        }
+
+        public void setTradeCost(int tradeCost) {
+            this.tradeCost = tradeCost;
+        }
+
+        /**
+         * Adds a fill to the trade cost of the current order.
+         */
+        public void recordTrade(int quantity, int price) {
+            tradeCost += quantity * price;
+            lastTradePrice = price;
+        }
+
+        public int getLastTradePrice() {
+            return lastTradePrice;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+
+        /**
+         * Mixes every field that identifies a resting order. Checksums are sums of these, so two books with the
+         * same orders agree regardless of the order in which they were built.
+         */
+        private long hashOrder(LimitOrder order) {
+            long hash = orderIdTable.getHash(order.getOrderKey());
+            hash = mixHash(hash ^ order.getSide().hashCode());
+            hash = mixHash(hash ^ order.getPrice());
+            hash = mixHash(hash ^ order.getQuantity());
+            return mixHash(hash ^ order.getSortingId());
+        }
+
+        /**
+         * SplitMix64 finalizer.
+         */
+        private long mixHash(long hash) {
+            hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+            hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+            return hash ^ (hash >>> 31);
+        }
+
+        public void updateOrderQuantity(LimitOrder order, int quantity) {
+            checksum -= hashOrder(order);
+            addLevelQuantity(order, quantity - order.getQuantity());
+            riskStage.addOpenQuantity(order, quantity - order.getQuantity());
+            order.setQuantity(quantity);
+            checksum += hashOrder(order);
+            bookView.updateOrderStatus(order);
+        }
+
+        private void onOrderAdded(LimitOrder order) {
+            checksum += hashOrder(order);
+            addLevelQuantity(order, order.getQuantity());
+            announceOrderAdded(order);
+        }
+
+        /**
+         * Tells everything outside the book that keeps track of resting orders about an added one.
+         */
+        private void announceOrderAdded(LimitOrder order) {
+            orderIdTable.retain(order.getOrderKey());
+            riskStage.addOpenQuantity(order, order.getQuantity());
+            bookView.updateOrderStatus(order);
+        }
+
+        /**
+         * Called on the copy taken before a FOK attempt that did not fill, as it becomes the book again. The
+         * attempt can only have removed whole orders, since any partial fill would have filled the FOK, so each
+         * order missing from the attempted book is announced as added again.
+         */
+        public void restoreOrdersRemovedIn(OrderBook attemptedBook) {
+            Set<LimitOrder> remainingOrders = Collections.newSetFromMap(new IdentityHashMap<>());
+            remainingOrders.addAll(attemptedBook.buyOrderList);
+            remainingOrders.addAll(attemptedBook.sellOrderList);
+            for (PriorityQueue<LimitOrder> orderList : List.of(buyOrderList, sellOrderList)) {
+                for (LimitOrder order : orderList) {
+                    if (remainingOrders.contains(order)) {
+                        continue;
+                    }
+                    announceOrderAdded(order);
+                    if (order instanceof GttOrder) {
+                        expiryWheel.schedule((GttOrder) order);
+                    }
+                }
+            }
+        }
+
+        private void onOrderRemoved(LimitOrder order) {
+            checksum -= hashOrder(order);
+            addLevelQuantity(order, -order.getQuantity());
+            riskStage.addOpenQuantity(order, -order.getQuantity());
+            bookView.removeOrderStatus(order);
+            if (order instanceof GttOrder) {
+                expiryWheel.cancel((GttOrder) order);
+            }
+            orderIdTable.release(order.getOrderKey());
+        }
+
+        private void addLevelQuantity(LimitOrder order, long quantity) {
+            PriceLadder levels = order.getSide().equals(Command.BUY_ORDER_COMMAND) ? buyLevels : sellLevels;
+            levels.add(order.getPrice(), quantity);
+        }
+
+        public PriorityQueue<LimitOrder> getBuyOrderList() {
+            return buyOrderList;
+        }
+
+        public PriorityQueue<LimitOrder> getSellOrderList() {
+            return sellOrderList;
+        }
+
+        public PriceLadder getBuyLevels() {
+            return buyLevels;
+        }
+
+        public PriceLadder getSellLevels() {
+            return sellLevels;
+        }
+
+        public int getSatisfiedQuantitySumOfBuyOrderList(int price) {
+            int sum = 0;
+            for (int levelPrice = buyLevels.getBestPrice(); levelPrice != PriceLadder.NO_PRICE && levelPrice >= price;
+                 levelPrice = buyLevels.getNextPrice(levelPrice)) {
+                sum += buyLevels.getQuantity(levelPrice);
+            }
+            return sum;
+        }
+
+        public int getSatisfiedQuantitySumOfSellOrderList(int price) {
+            int sum = 0;
+            for (int levelPrice = sellLevels.getBestPrice(); levelPrice != PriceLadder.NO_PRICE && levelPrice <= price;
+                 levelPrice = sellLevels.getNextPrice(levelPrice)) {
+                sum += sellLevels.getQuantity(levelPrice);
+            }
+            return sum;
+        }
+
+        public void removeOrderFromBuyOrderList(LimitOrder order) {
+            if (buyOrderList.remove(order)) {
+                onOrderRemoved(order);
+            }
+        }
+
+        public void removeOrderFromSellOrderList(LimitOrder order) {
+            if (sellOrderList.remove(order)) {
+                onOrderRemoved(order);
+            }
+        }
+
+        public LimitOrder pollFromBuyOrderList() {
+            LimitOrder order = buyOrderList.poll();
+            if (order != null) {
+                onOrderRemoved(order);
+            }
+            return order;
+        }
+
+        public LimitOrder pollFromSellOrderList() {
+            LimitOrder order = sellOrderList.poll();
+            if (order != null) {
+                onOrderRemoved(order);
+            }
+            return order;
+        }
+
+        /**
+         * Removes the first order with the given id from each side, through the iterator so that the heap is
+         * walked only once.
+         */
+        public void removeOrderByOrderKey(int orderKey) {
+            removeFirstOrderByOrderKey(buyOrderList, orderKey);
+            removeFirstOrderByOrderKey(sellOrderList, orderKey);
+        }
+
+        private void removeFirstOrderByOrderKey(PriorityQueue<LimitOrder> orderList, int orderKey) {
+            Iterator<LimitOrder> orders = orderList.iterator();
+            while (orders.hasNext()) {
+                LimitOrder order = orders.next();
+                if (order.getOrderKey() == orderKey) {
+                    orders.remove();
+                    onOrderRemoved(order);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Removes every matching order of both sides in a single pass over each heap and returns how many.
+         */
+        public int removeOrdersIf(Predicate<LimitOrder> filter) {
+            return removeOrdersFromBuyOrderListIf(filter) + removeOrdersFromSellOrderListIf(filter);
+        }
+
+        public int removeOrdersFromBuyOrderListIf(Predicate<LimitOrder> filter) {
+            return removeOrdersIf(buyOrderList, filter);
+        }
+
+        public int removeOrdersFromSellOrderListIf(Predicate<LimitOrder> filter) {
+            return removeOrdersIf(sellOrderList, filter);
+        }
+
+        private int removeOrdersIf(PriorityQueue<LimitOrder> orderList, Predicate<LimitOrder> filter) {
+            int sizeBefore = orderList.size();
+            orderList.removeIf(order -> {
+                if (!filter.test(order)) {
+                    return false;
+                }
+                onOrderRemoved(order);
+                return true;
+            });
+            return sizeBefore - orderList.size();
+        }
+
+        public LimitOrder getOrderByOrderKey(int orderKey) {
+            for (LimitOrder buyOrder : buyOrderList) {
+                if (buyOrder.getOrderKey() == orderKey) {
+                    return buyOrder;
+                }
+            }
+
+            for (LimitOrder sellOrder : sellOrderList) {
+                if (sellOrder.getOrderKey() == orderKey) {
+                    return sellOrder;
+                }
+            }
+
+            return null;
+        }
+
+        public void replaceOrder(int orderKey, int quantity, int price) {
+            LimitOrder orderToChange = getOrderByOrderKey(orderKey);
+            if (orderToChange == null) {
+                return;
+            }
+            int oldQuantity = orderToChange.getQuantity();
+            int oldPrice = orderToChange.getPrice();
+
+            if (oldPrice == price && quantity <= oldQuantity) {
+                updateOrderQuantity(orderToChange, quantity);
+            } else {
+                orderBookStorage.removeOrderByOrderKey(orderKey);
+                orderBookStorage.addOrderToOrderList(orderToChange.replaceWith(quantity, price));
+            }
+        }
+
+        public void addOrderToOrderList(LimitOrder order) {
+            String orderSide = order.getSide();
+
+            if (orderSide.equals(Command.BUY_ORDER_COMMAND)) {
+                buyOrderList.add(order);
+            } else {
+                sellOrderList.add(order);
+            }
+            onOrderAdded(order);
+        }
+    }
+
+    /**
+     * Utility class for command names.
+     */
+    static class Command {
+        static final String SUBMIT_COMMAND = "SUB";
+        static final String CANCEL_COMMAND = "CXL";
+        static final String REPLACE_COMMAND = "CRP";
+        static final String END_COMMAND = "END";
+        static final String LIMIT_ORDER_COMMAND = "LO";
+        static final String MARKET_ORDER_COMMAND = "MO";
+        static final String IOC_ORDER_COMMAND = "IOC";
+        static final String FOK_ORDER_COMMAND = "FOK";
+        static final String BUY_ORDER_COMMAND = "B";
         static final String SELL_ORDER_COMMAND = "S";
         static final String ICE_ORDER_COMMAND = "ICE";
+        static final String CHECKSUM_COMMAND = "CHK";
+        static final String STOP_ORDER_COMMAND = "STP";
+        static final String STOP_LIMIT_ORDER_COMMAND = "STL";
+        static final String GTT_ORDER_COMMAND = "GTT";
+        static final String CLOCK_COMMAND = "CLK";
+        static final String AUCTION_COMMAND = "AUC";
+        static final String UNCROSS_COMMAND = "UNX";
+        static final String MASS_CANCEL_COMMAND = "MCX";
+        static final String MASS_QUOTE_COMMAND = "MQT";
+        static final String IMPACT_QUERY_COMMAND = "QRY";
+        static final String ACCOUNT_LIMITS_COMMAND = "LIM";
+        static final String ACCOUNT_PREFIX = "ACCT=";
+        static final String MASS_CANCEL_ALL = "ALL";
+        static final String MASS_CANCEL_SIDE = "SIDE";
+        static final String MASS_CANCEL_RANGE = "RANGE";
+        static final String MASS_CANCEL_PREFIX = "PREFIX";
+        static final String MASS_CANCEL_ACCOUNT = "ACCOUNT";
+    }
+
+    /**
+     * Parses the input to return order object depends on the input command word.
+     */
+    class Parser {
+        private String[] inputWords;
+        private String commandWord;
+        private String orderType;
+        private String side;
+        private String orderId;
+        private int quantity;
+        private int price;
+        private String account;
+
+        private boolean NOT_REPLACED_ORDER = false;
+
+        public Order parse(String input) throws IOException {
+            inputWords = input.trim().split(" ");
+            // assumes that input is always valid, hence no exception is expected to be thrown
+            commandWord = inputWords[0];
+            // an optional account comes last, after the words read by position
+            String lastWord = inputWords[inputWords.length - 1];
+            account = lastWord.startsWith(Command.ACCOUNT_PREFIX)
+                    ? lastWord.substring(Command.ACCOUNT_PREFIX.length()) : null;
+
+            switch (commandWord) {
+
+            case Command.SUBMIT_COMMAND:
+                orderType = inputWords[1];
+                side = inputWords[2];
+                orderId = inputWords[3];
+                quantity = Integer.parseInt(inputWords[4]);
+
+                switch (orderType) {
+
+                case Command.LIMIT_ORDER_COMMAND:
+                    price = Integer.parseInt(inputWords[5]);
+                    return withAccount(new LimitOrder(side, orderId, quantity, price));
+
+                case Command.MARKET_ORDER_COMMAND:
+                    return withAccount(new MarketOrder(side, orderId, quantity));
+
+                case Command.IOC_ORDER_COMMAND:
+                    price = Integer.parseInt(inputWords[5]);
+                    return withAccount(new IocOrder(side, orderId, quantity, price));
+
+                case Command.FOK_ORDER_COMMAND:
+                    price = Integer.parseInt(inputWords[5]);
+                    return withAccount(new FokOrder(side, orderId, quantity, price));
+
+                case Command.GTT_ORDER_COMMAND:
+                    price = Integer.parseInt(inputWords[5]);
+                    return withAccount(new GttOrder(side, orderId, quantity, price, Long.parseLong(inputWords[6])));
+
+                case Command.STOP_ORDER_COMMAND:
+                    price = Integer.parseInt(inputWords[5]);
+                    return withAccount(new StopOrder(side, orderId, quantity, price));
+
+                case Command.STOP_LIMIT_ORDER_COMMAND:
+                    price = Integer.parseInt(inputWords[5]);
+                    return withAccount(new StopOrder(side, orderId, quantity, price,
+                            Integer.parseInt(inputWords[6])));
+
+                case Command.ICE_ORDER_COMMAND:
+                    price = Integer.parseInt(inputWords[5]);
+                    // not finished
+                }
+
+            case Command.CANCEL_COMMAND:
+                return new CancelOrder("", inputWords[1], 0);
+
+            case Command.REPLACE_COMMAND:
+                orderId = inputWords[1];
+                quantity = Integer.parseInt(inputWords[2]);
+                price = Integer.parseInt(inputWords[3]);
+                return new ReplaceOrder("", orderId, quantity, price);
+
+            case Command.END_COMMAND:
+                return new ExitOrder("", "", 0);
+
+            case Command.CHECKSUM_COMMAND:
+                return new ChecksumOrder("", "", 0);
+
+            case Command.CLOCK_COMMAND:
+                return new ClockOrder("", "", 0, Long.parseLong(inputWords[1]));
+
+            case Command.AUCTION_COMMAND:
+                return new AuctionOrder("", "", 0);
+
+            case Command.UNCROSS_COMMAND:
+                return new UncrossOrder("", "", 0);
+
+            case Command.MASS_CANCEL_COMMAND:
+                switch (inputWords[1]) {
+
+                case Command.MASS_CANCEL_ALL:
+                    return new MassCancelOrder("", "", Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+                case Command.MASS_CANCEL_SIDE:
+                    return new MassCancelOrder(parseSide(inputWords[2]), "", Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+                case Command.MASS_CANCEL_RANGE:
+                    return new MassCancelOrder(parseSide(inputWords[2]), "", Integer.parseInt(inputWords[3]),
+                            Integer.parseInt(inputWords[4]));
+
+                case Command.MASS_CANCEL_PREFIX:
+                    return new MassCancelOrder("", inputWords[2], Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+                case Command.MASS_CANCEL_ACCOUNT:
+                    int ownerSlot = riskStage.findAccountSlot(inputWords[2]);
+                    if (ownerSlot == NO_ACCOUNT) {
+                        throw new IOException("Unknown account!");
+                    }
+                    return new MassCancelOrder("", "", Integer.MIN_VALUE, Integer.MAX_VALUE, ownerSlot);
+
+                default:
+                    throw new IOException("Unknown input!");
+                }
+
+            case Command.ACCOUNT_LIMITS_COMMAND:
+                return new AccountLimitsOrder(inputWords[1], Long.parseLong(inputWords[2]),
+                        Long.parseLong(inputWords[3]), Long.parseLong(inputWords[4]));
+
+            case Command.IMPACT_QUERY_COMMAND:
+                quantity = Integer.parseInt(inputWords[2]);
+                price = inputWords.length > 3 ? Integer.parseInt(inputWords[3]) : 0;
+                return new ImpactQueryOrder(inputWords[1], quantity, price);
+
+            case Command.MASS_QUOTE_COMMAND:
+                // quotes come as side, id, quantity and price, repeated; all numbers are read before any quote
+                // is built, so a malformed quote fails the command without drawing sorting ids
+                int quoteCount = (inputWords.length - 1) / 4;
+                if (quoteCount == 0 || (inputWords.length - 1) % 4 != 0) {
+                    throw new IOException("Incomplete quote!");
+                }
+                int[] quoteNumbers = new int[quoteCount * 2];
+                for (int i = 0; i < quoteCount; i++) {
+                    parseSide(inputWords[i * 4 + 1]);
+                    quoteNumbers[i * 2] = Integer.parseInt(inputWords[i * 4 + 3]);
+                    quoteNumbers[i * 2 + 1] = Integer.parseInt(inputWords[i * 4 + 4]);
+                }
+                List<LimitOrder> quotes = new ArrayList<>(quoteCount);
+                for (int i = 0; i < quoteCount; i++) {
+                    quotes.add(new LimitOrder(inputWords[i * 4 + 1], inputWords[i * 4 + 2], quoteNumbers[i * 2],
+                            quoteNumbers[i * 2 + 1]));
+                }
+                return new MassQuoteOrder("", "", 0, quotes);
+
+            default:
+                throw new IOException("Unknown input!");
+            }
+        }
+
+        private String parseSide(String word) throws IOException {
+            if (!word.equals(Command.BUY_ORDER_COMMAND) && !word.equals(Command.SELL_ORDER_COMMAND)) {
+                throw new IOException("Unknown side!");
+            }
+            return word;
+        }
+
+        private Order withAccount(Order order) {
+            if (account != null) {
+                order.setAccountSlot(riskStage.getAccountSlot(account));
+            }
+            return order;
+        }
+    }
+
+    /**
+     * Builds string output of the whole OrderBook.
+     */
+    class OrderBookStringBuilder {
+        public String build() {
+            StringBuilder sb = new StringBuilder();
+            PriorityQueue<LimitOrder> buyOrderList = new PriorityQueue<>(orderBookStorage.buyOrderList);
+            PriorityQueue<LimitOrder> sellOrderList = new PriorityQueue<>(orderBookStorage.sellOrderList);
+            sb.append("B: ");
+            while (!buyOrderList.isEmpty()) {
+                sb.append(buyOrderList.poll() + " ");
+            }
+            sb.append("\nS: ");
+            while (!sellOrderList.isEmpty()) {
+                sb.append(sellOrderList.poll() + " ");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Best bid and ask of the book at one point in time.
+     * A quantity of 0 means that side of the book is empty.
+     */
+    static class TopOfBook {
+        private final int bidPrice;
+        private final long bidQuantity;
+        private final int askPrice;
+        private final long askQuantity;
+
+        public TopOfBook(int bidPrice, long bidQuantity, int askPrice, long askQuantity) {
+            this.bidPrice = bidPrice;
+            this.bidQuantity = bidQuantity;
+            this.askPrice = askPrice;
+            this.askQuantity = askQuantity;
+        }
+
+        public int getBidPrice() {
+            return bidPrice;
+        }
+
+        public long getBidQuantity() {
+            return bidQuantity;
+        }
+
+        public int getAskPrice() {
+            return askPrice;
+        }
+
+        public long getAskQuantity() {
+            return askQuantity;
+        }
+
+        @Override
+        public String toString() {
+            return bidQuantity + "@" + bidPrice + " / " + askQuantity + "@" + askPrice;
+        }
+    }
+
+    /**
+     * Status of a single resting order.
+     */
+    static class OrderStatus {
+        private final String side;
+        private final int price;
+        private final int quantity;
+        private final int accountSlot;
+
+        public OrderStatus(String side, int price, int quantity, int accountSlot) {
+            this.side = side;
+            this.price = price;
+            this.quantity = quantity;
+            this.accountSlot = accountSlot;
+        }
+
+        public String getSide() {
+            return side;
+        }
+
+        public int getPrice() {
+            return price;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+
+        public int getAccountSlot() {
+            return accountSlot;
+        }
+    }
+
+    /**
+     * Immutable view of the top price levels, taken after a given command.
+     */
+    static class BookSnapshot {
+        static final BookSnapshot EMPTY = new BookSnapshot(0, new int[0], new long[0], new int[0], new long[0]);
+
+        private final long sequence;
+        private final int[] bidPrices;
+        private final long[] bidQuantities;
+        private final int[] askPrices;
+        private final long[] askQuantities;
+
+        public BookSnapshot(long sequence, int[] bidPrices, long[] bidQuantities, int[] askPrices,
+                            long[] askQuantities) {
+            this.sequence = sequence;
+            this.bidPrices = bidPrices;
+            this.bidQuantities = bidQuantities;
+            this.askPrices = askPrices;
+            this.askQuantities = askQuantities;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public int getBidLevelCount() {
+            return bidPrices.length;
+        }
+
+        public int getBidPrice(int level) {
+            return bidPrices[level];
+        }
+
+        public long getBidQuantity(int level) {
+            return bidQuantities[level];
+        }
+
+        public int getAskLevelCount() {
+            return askPrices.length;
+        }
+
+        public int getAskPrice(int level) {
+            return askPrices[level];
+        }
+
+        public long getAskQuantity(int level) {
+            return askQuantities[level];
+        }
+    }
+
+    /**
+     * Read side of the book for other threads.
+     * The matching thread publishes after every command; readers never block it and never touch the OrderBook.
+     * Best bid/ask is kept behind a seqlock, deeper levels are published as an immutable BookSnapshot every
+     * snapshotInterval commands (--snapshot-every, 1 by default), and order statuses are updated by the OrderBook
+     * as orders change. Every step reads only the per-level totals and costs O(SNAPSHOT_DEPTH), never O(orders).
+     */
+    class BookView {
+        private static final int SNAPSHOT_DEPTH = 10;
+
+        private final AtomicLong topOfBookSequence = new AtomicLong();
+        private int bidPrice;
+        private long bidQuantity;
+        private int askPrice;
+        private long askQuantity;
+
+        private volatile BookSnapshot snapshot = BookSnapshot.EMPTY;
+        private int snapshotInterval = 1;
+
+        // indexed by order key; replaced by a larger copy when a key does not fit
+        private volatile AtomicReferenceArray<OrderStatus> orderStatuses = new AtomicReferenceArray<>(64);
+
+        public void setSnapshotInterval(int snapshotInterval) {
+            this.snapshotInterval = snapshotInterval;
+        }
+
+        /**
+         * Called by the matching thread only, with the sequence number of the command just processed.
+         */
+        public void publish(OrderBook orderBook, long commandSequence) {
+            int bestBidPrice = orderBook.getBuyLevels().getBestPrice();
+            long bestBidQuantity = orderBook.getBuyLevels().getQuantity(bestBidPrice);
+            int bestAskPrice = orderBook.getSellLevels().getBestPrice();
+            long bestAskQuantity = orderBook.getSellLevels().getQuantity(bestAskPrice);
+
+            long sequence = topOfBookSequence.get();
+            topOfBookSequence.setOpaque(sequence + 1);
+            VarHandle.storeStoreFence();
+            bidPrice = bestBidPrice == PriceLadder.NO_PRICE ? 0 : bestBidPrice;
+            bidQuantity = bestBidQuantity;
+            askPrice = bestAskPrice == PriceLadder.NO_PRICE ? 0 : bestAskPrice;
+            askQuantity = bestAskQuantity;
+            topOfBookSequence.setRelease(sequence + 2);
+
+            if (commandSequence % snapshotInterval == 0) {
+                snapshot = takeSnapshot(orderBook, commandSequence);
+            }
+        }
+
+        /**
+         * Called by the matching thread only, whenever a resting order is added or changes quantity.
+         */
+        public void updateOrderStatus(LimitOrder order) {
+            AtomicReferenceArray<OrderStatus> statuses = orderStatuses;
+            if (order.getOrderKey() >= statuses.length()) {
+                AtomicReferenceArray<OrderStatus> resizedStatuses = new AtomicReferenceArray<>(
+                        Math.max(statuses.length() * 2, order.getOrderKey() + 1));
+                for (int orderKey = 0; orderKey < statuses.length(); orderKey++) {
+                    resizedStatuses.setPlain(orderKey, statuses.getPlain(orderKey));
+                }
+                statuses = resizedStatuses;
+                orderStatuses = resizedStatuses;
+            }
+            statuses.set(order.getOrderKey(), new OrderStatus(order.getSide(), order.getPrice(),
+                    order.getQuantity(), order.getAccountSlot()));
+        }
+
+        /**
+         * Called by the matching thread only, whenever a resting order leaves the book.
+         */
+        public void removeOrderStatus(LimitOrder order) {
+            orderStatuses.set(order.getOrderKey(), null);
+        }
+
+        /**
+         * Safe to call from any thread; retries while the matching thread is mid-update.
+         */
+        public TopOfBook getTopOfBook() {
+            while (true) {
+                long sequence = topOfBookSequence.getAcquire();
+                if ((sequence & 1) == 0) {
+                    TopOfBook topOfBook = new TopOfBook(bidPrice, bidQuantity, askPrice, askQuantity);
+                    VarHandle.loadLoadFence();
+                    if (topOfBookSequence.getOpaque() == sequence) {
+                        return topOfBook;
+                    }
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        /**
+         * Safe to call from any thread.
+         */
+        public BookSnapshot getSnapshot() {
+            return snapshot;
+        }
+
+        /**
+         * Safe to call from any thread. Returns null if the order is not resting in the book.
+         */
+        public OrderStatus getOrderStatus(int orderKey) {
+            AtomicReferenceArray<OrderStatus> statuses = orderStatuses;
+            return orderKey < statuses.length() ? statuses.get(orderKey) : null;
+        }
+
+        /**
+         * Safe to call from any thread. The id is looked up in the order id table here, on the reader's side,
+         * retrying while the matching thread is changing the table.
+         */
+        public OrderStatus getOrderStatus(String orderId) {
+            while (true) {
+                long sequence = orderIdTable.getModificationSequence();
+                if ((sequence & 1) == 0) {
+                    try {
+                        int orderKey = orderIdTable.find(orderId);
+                        OrderStatus status = orderKey < 0 ? null : getOrderStatus(orderKey);
+                        if (!orderIdTable.isModifiedSince(sequence)) {
+                            return status;
+                        }
+                    } catch (RuntimeException e) {
+                        // read the table mid-change
+                    }
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        private BookSnapshot takeSnapshot(OrderBook orderBook, long sequence) {
+            int[] bidPrices = new int[Math.min(SNAPSHOT_DEPTH, orderBook.getBuyLevels().size())];
+            long[] bidQuantities = new long[bidPrices.length];
+            copyBestLevels(orderBook.getBuyLevels(), bidPrices, bidQuantities);
+
+            int[] askPrices = new int[Math.min(SNAPSHOT_DEPTH, orderBook.getSellLevels().size())];
+            long[] askQuantities = new long[askPrices.length];
+            copyBestLevels(orderBook.getSellLevels(), askPrices, askQuantities);
+            return new BookSnapshot(sequence, bidPrices, bidQuantities, askPrices, askQuantities);
+        }
+
+        private void copyBestLevels(PriceLadder levels, int[] prices, long[] quantities) {
+            int price = levels.getBestPrice();
+            for (int level = 0; level < prices.length; level++) {
+                prices[level] = price;
+                quantities[level] = levels.getQuantity(price);
+                price = levels.getNextPrice(price);
+            }
+        }
     }
 
     /**
-     * Parses the input to return order object depends on the input command word.
+     * One client connection of the OrderGateway.
+     * Only the selector thread reads and writes the channel, the matching thread only queues responses.
      */
-    class Parser {
-        private String[] inputWords;
-        private String commandWord;
-        private String orderType;
-        private String side;
-        private String orderId;
-        private int quantity;
-        private int price;
+    class GatewaySession {
+        private final SocketChannel channel;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(OrderGateway.MAX_LINE_LENGTH);
+        private final ConcurrentLinkedQueue<ByteBuffer> pendingResponses = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean isQueuedForWrite = new AtomicBoolean();
+        private SelectionKey selectionKey;
+        // requests read but not yet answered on the wire, and whether reading is paused because of them
+        private int unansweredCount;
+        private boolean isReadPaused;
 
-        private boolean NOT_REPLACED_ORDER = false;
+        public GatewaySession(SocketChannel channel) {
+            this.channel = channel;
+        }
 
-        public Order parse(String input) throws IOException {
-            inputWords = input.trim().split(" ");
-            // assumes that input is always valid, hence no exception is expected to be thrown
-            commandWord = inputWords[0];
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+    }
 
-            switch (commandWord) {
+    /**
+     * A command line received from a session, waiting for the matching thread.
+     * A command rejected by the risk check still queues, so that its rejection is answered in order.
+     */
+    class GatewayRequest {
+        private final GatewaySession session;
+        private final String input;
+        private final String rejection;
+        private final long readTime;
+
+        public GatewayRequest(GatewaySession session, String input, String rejection, long readTime) {
+            this.session = session;
+            this.input = input;
+            this.rejection = rejection;
+            this.readTime = readTime;
+        }
+    }
 
-            case Command.SUBMIT_COMMAND:
-                orderType = inputWords[1];
-                side = inputWords[2];
-                orderId = inputWords[3];
-                quantity = Integer.parseInt(inputWords[4]);
+    /**
+     * Accepts TCP clients speaking the same line protocol as stdin.
+     * A single selector thread reads all sessions and queues complete lines in arrival order, a single matching
+     * thread executes them and queues one response line per request back to its session.
+     * Empty outputs (CXL, CRP) are answered with ACK, unparsable lines with ERR, and END returns the book on one
+     * line, buy side first, without stopping the gateway.
+     * A session stops being read once MAX_UNANSWERED_COUNT of its requests are queued or unwritten, and resumes
+     * when its backlog drains to half of that, so neither a slow matcher nor a client that never reads its
+     * responses can grow the queues without bound.
+     */
+    class OrderGateway {
+        static final int MAX_LINE_LENGTH = 8192;
+        private static final int MAX_DRAIN_SIZE = 1024;
+        private static final int MAX_UNANSWERED_COUNT = 4096;
+        private static final String ACK_RESPONSE = "ACK";
+        private static final String ERROR_RESPONSE = "ERR";
+
+        private final ServerSocketChannel serverChannel;
+        private final Selector selector;
+        private final BlockingQueue<GatewayRequest> requestQueue = new LinkedBlockingQueue<>();
+        private final ConcurrentLinkedQueue<GatewaySession> sessionsToWrite = new ConcurrentLinkedQueue<>();
+        private final Thread selectorThread;
+        private final Thread matchingThread;
+        private volatile boolean isRunning = true;
+        private long lastParseTime;
+        private long lastMatchTime;
+
+        public OrderGateway(int port) throws IOException {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            selectorThread = new Thread(this::runSelector, "gateway-selector");
+            matchingThread = new Thread(this::runMatcher, "gateway-matcher");
+        }
+
+        public int getLocalPort() throws IOException {
+            return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        }
+
+        public void start() {
+            selectorThread.start();
+            matchingThread.start();
+        }
+
+        public void join() throws InterruptedException {
+            selectorThread.join();
+            matchingThread.join();
+        }
+
+        public void close() throws IOException {
+            isRunning = false;
+            matchingThread.interrupt();
+            selector.wakeup();
+        }
+
+        private void runSelector() {
+            try {
+                while (isRunning) {
+                    selector.select();
+                    flushResponses();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            acceptSession();
+                            continue;
+                        }
+                        GatewaySession session = (GatewaySession) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                readRequests(session);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                writeResponses(session);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            closeSession(session);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    for (SelectionKey key : selector.keys()) {
+                        key.channel().close();
+                    }
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
 
-                switch (orderType) {
+        private void acceptSession() throws IOException {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            GatewaySession session = new GatewaySession(channel);
+            session.selectionKey = channel.register(selector, SelectionKey.OP_READ, session);
+        }
 
-                case Command.LIMIT_ORDER_COMMAND:
-                    price = Integer.parseInt(inputWords[5]);
-                    return new LimitOrder(side, orderId, quantity, price);
+        /**
+         * Splits whatever arrived into lines; a trailing partial line stays in the buffer for the next read.
+         */
+        private void readRequests(GatewaySession session) throws IOException {
+            ByteBuffer buffer = session.readBuffer;
+            int readCount = session.channel.read(buffer);
+            if (readCount < 0) {
+                closeSession(session);
+                return;
+            }
+            buffer.flip();
+            int lineStart = 0;
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) != '\n') {
+                    continue;
+                }
+                int lineEnd = i;
+                if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+                    lineEnd--;
+                }
+                String input = new String(buffer.array(), lineStart, lineEnd - lineStart,
+                        StandardCharsets.US_ASCII);
+                if (!input.isBlank()) {
+                    requestQueue.add(new GatewayRequest(session, input, riskStage.check(input), stamp()));
+                    session.unansweredCount++;
+                }
+                lineStart = i + 1;
+            }
+            buffer.position(lineStart);
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                // a line longer than the buffer can never complete
+                closeSession(session);
+                return;
+            }
+            if (session.unansweredCount >= MAX_UNANSWERED_COUNT) {
+                session.isReadPaused = true;
+                updateInterestOps(session, !session.pendingResponses.isEmpty());
+            }
+        }
 
-                case Command.MARKET_ORDER_COMMAND:
-                    return new MarketOrder(side, orderId, quantity);
+        private void flushResponses() {
+            GatewaySession session;
+            while ((session = sessionsToWrite.poll()) != null) {
+                session.isQueuedForWrite.set(false);
+                try {
+                    writeResponses(session);
+                } catch (IOException | RuntimeException e) {
+                    closeSession(session);
+                }
+            }
+        }
 
-                case Command.IOC_ORDER_COMMAND:
-                    price = Integer.parseInt(inputWords[5]);
-                    return new IocOrder(side, orderId, quantity, price);
+        /**
+         * Writes until the socket would block, then waits for OP_WRITE to continue.
+         */
+        private void writeResponses(GatewaySession session) throws IOException {
+            if (!session.isOpen()) {
+                return;
+            }
+            ByteBuffer response;
+            boolean isBlocked = false;
+            while ((response = session.pendingResponses.peek()) != null) {
+                session.channel.write(response);
+                if (response.hasRemaining()) {
+                    isBlocked = true;
+                    break;
+                }
+                session.pendingResponses.poll();
+                session.unansweredCount--;
+            }
+            if (session.isReadPaused && session.unansweredCount <= MAX_UNANSWERED_COUNT / 2) {
+                session.isReadPaused = false;
+            }
+            updateInterestOps(session, isBlocked);
+        }
 
-                case Command.FOK_ORDER_COMMAND:
-                    price = Integer.parseInt(inputWords[5]);
-                    return new FokOrder(side, orderId, quantity, price);
+        private void updateInterestOps(GatewaySession session, boolean isWaitingToWrite) {
+            session.selectionKey.interestOps((session.isReadPaused ? 0 : SelectionKey.OP_READ)
+                    | (isWaitingToWrite ? SelectionKey.OP_WRITE : 0));
+        }
 
-                case Command.ICE_ORDER_COMMAND:
-                    price = Integer.parseInt(inputWords[5]);
-                    // not finished
+        private void closeSession(GatewaySession session) {
+            session.selectionKey.cancel();
+            try {
+                session.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Drains requests in batches so the selector is woken up once per batch instead of once per response.
+         */
+        private void runMatcher() {
+            List<GatewayRequest> batch = new ArrayList<>(MAX_DRAIN_SIZE);
+            try {
+                while (isRunning) {
+                    batch.add(requestQueue.take());
+                    requestQueue.drainTo(batch, MAX_DRAIN_SIZE - 1);
+                    for (GatewayRequest request : batch) {
+                        String response = request.rejection != null
+                                ? request.rejection : processRequest(request.input);
+                        GatewaySession session = request.session;
+                        if (!session.isOpen()) {
+                            continue;
+                        }
+                        session.pendingResponses.add(
+                                ByteBuffer.wrap((response + "\n").getBytes(StandardCharsets.US_ASCII)));
+                        if (session.isQueuedForWrite.compareAndSet(false, true)) {
+                            sessionsToWrite.add(session);
+                        }
+                        // a command rejected by the risk check never reached processRequest, so the stamps are stale
+                        if (latencyTracer != null && request.rejection == null && lastMatchTime != 0) {
+                            latencyTracer.record(request.input, request.readTime, lastParseTime, lastMatchTime,
+                                    stamp());
+                        }
+                    }
+                    batch.clear();
+                    selector.wakeup();
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
-            case Command.CANCEL_COMMAND:
-                return new CancelOrder("", inputWords[1], 0);
+        /**
+         * Leaves the parse and match times of the command in lastParseTime and lastMatchTime, or 0 if it failed
+         * or tracing is off.
+         */
+        private String processRequest(String input) {
+            String output;
+            lastParseTime = 0;
+            lastMatchTime = 0;
+            try {
+                Order parsedOrder = parser.parse(input);
+                String rejection = riskStage.checkReplace(parsedOrder);
+                if (rejection != null) {
+                    return rejection;
+                }
+                long parseTime = stamp();
+                output = process(parsedOrder);
+                long matchTime = stamp();
+                sequence(parsedOrder, input);
+                lastParseTime = parseTime;
+                lastMatchTime = matchTime;
+            } catch (IOException | RuntimeException e) {
+                return ERROR_RESPONSE + " " + e.getMessage();
+            }
+            if (output == null || output.isEmpty()) {
+                return ACK_RESPONSE;
+            }
+            // the book dump puts each side on its own line
+            return output.replace("\n", "");
+        }
+    }
 
-            case Command.REPLACE_COMMAND:
-                orderId = inputWords[1];
-                quantity = Integer.parseInt(inputWords[2]);
-                price = Integer.parseInt(inputWords[3]);
-                return new ReplaceOrder("", orderId, quantity, price);
+    /**
+     * Connection from the primary to one backup engine.
+     * The sender thread writes queued frames in batches, the ack thread records the highest sequence the
+     * backup has applied. A failed backup is dropped without affecting the primary.
+     */
+    class ReplicaLink {
+        private static final int MAX_BATCH_SIZE = 4096;
+        private static final byte[] END_OF_STREAM = new byte[0];
+        private static final long FINAL_ACK_TIMEOUT_MILLIS = 5000;
+
+        private final String address;
+        private final Socket socket;
+        private final Thread senderThread;
+        private final Thread ackThread;
+        private final BlockingQueue<byte[]> pendingFrames = new LinkedBlockingQueue<>();
+        private volatile long acknowledgedSequence;
+        private volatile boolean isConnected = true;
+
+        public ReplicaLink(String host, int port) throws IOException {
+            address = host + ":" + port;
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            senderThread = new Thread(this::runSender, "replication-sender-" + port);
+            ackThread = new Thread(this::runAckReader, "replication-ack-" + port);
+            senderThread.setDaemon(true);
+            ackThread.setDaemon(true);
+            senderThread.start();
+            ackThread.start();
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public long getAcknowledgedSequence() {
+            return acknowledgedSequence;
+        }
+
+        public boolean isConnected() {
+            return isConnected;
+        }
+
+        private void runSender() {
+            List<byte[]> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            try {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                while (isConnected) {
+                    batch.add(pendingFrames.take());
+                    pendingFrames.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    for (byte[] frame : batch) {
+                        if (frame == END_OF_STREAM) {
+                            out.flush();
+                            socket.shutdownOutput();
+                            return;
+                        }
+                        out.write(frame);
+                    }
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                disconnect();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
-            case Command.END_COMMAND:
-                return new ExitOrder("", "", 0);
+        private void runAckReader() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (isConnected) {
+                    acknowledgedSequence = in.readLong();
+                }
+            } catch (IOException e) {
+                disconnect();
+            }
+        }
 
-            default:
-                throw new IOException("Unknown input!");
+        /**
+         * Sends everything queued so far, then ends the stream so the backup can promote itself, and waits a
+         * while for the backup to acknowledge the last frames and hang up.
+         */
+        public void close() throws InterruptedException {
+            if (isConnected) {
+                pendingFrames.add(END_OF_STREAM);
+                senderThread.join();
+                ackThread.join(FINAL_ACK_TIMEOUT_MILLIS);
+            }
+        }
+
+        private void disconnect() {
+            isConnected = false;
+            pendingFrames.clear();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
     }
 
     /**
-     * Builds string output of the whole OrderBook.
+     * Streams every successfully parsed input line of the primary, tagged with its sequence number, to the
+     * backups. Publishing only queues the frame, the matching thread never waits for a backup.
+     * A frame is the sequence (long), the line length (int) and the ASCII line.
      */
-    class OrderBookStringBuilder {
-        public String build() {
-            StringBuilder sb = new StringBuilder();
-            sb.append("B: ");
-            while (!orderBookStorage.buyOrderList.isEmpty()) {
-                sb.append(orderBookStorage.buyOrderList.poll() + " ");
+    class ReplicationPublisher {
+        private final List<ReplicaLink> replicaLinks = new ArrayList<>();
+
+        public void addReplica(String host, int port) throws IOException {
+            replicaLinks.add(new ReplicaLink(host, port));
+        }
+
+        public void publish(long sequence, String input) {
+            byte[] line = input.getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer frame = ByteBuffer.allocate(Long.BYTES + Integer.BYTES + line.length);
+            frame.putLong(sequence).putInt(line.length).put(line);
+            for (ReplicaLink replicaLink : replicaLinks) {
+                if (replicaLink.isConnected()) {
+                    replicaLink.pendingFrames.add(frame.array());
+                }
             }
-            sb.append("\nS: ");
-            while (!orderBookStorage.sellOrderList.isEmpty()) {
-                sb.append(orderBookStorage.sellOrderList.poll() + " ");
+        }
+
+        /**
+         * Reports on stderr how far each backup got, so a backup that fell behind or was dropped shows up.
+         */
+        public void close() throws InterruptedException {
+            for (ReplicaLink replicaLink : replicaLinks) {
+                replicaLink.close();
+                System.err.println("Backup " + replicaLink.getAddress() + " acknowledged sequence "
+                        + replicaLink.getAcknowledgedSequence() + " of " + commandSequence);
             }
-            return sb.toString();
         }
     }
 
-    public static void main(String[] args) throws IOException {
+    /**
+     * Backup side of replication. Applies the primary's frames to this engine's own book in sequence order
+     * and acknowledges the last applied sequence whenever it runs out of buffered input.
+     * Returns once the primary's stream ends, so the caller can promote this engine.
+     */
+    class ReplicaReceiver {
+        private final ServerSocket serverSocket;
+
+        public ReplicaReceiver(int port) throws IOException {
+            serverSocket = new ServerSocket(port);
+        }
+
+        public int getLocalPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        public void receive() throws IOException {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                while (true) {
+                    long sequence = in.readLong();
+                    byte[] line = new byte[in.readInt()];
+                    in.readFully(line);
+                    if (sequence != commandSequence + 1) {
+                        throw new IOException("Expected sequence " + (commandSequence + 1) + " but got " + sequence);
+                    }
+                    String input = new String(line, StandardCharsets.US_ASCII);
+                    // the primary's risk check already passed, so only its effects are repeated
+                    Order parsedOrder = parser.parse(input);
+                    riskStage.replay(parsedOrder);
+                    process(parsedOrder);
+                    sequence(parsedOrder, input);
+                    if (in.available() == 0) {
+                        out.writeLong(commandSequence);
+                        out.flush();
+                    }
+                }
+            } catch (EOFException | SocketException e) {
+                // primary is gone
+            } finally {
+                serverSocket.close();
+            }
+        }
+    }
+
+    /**
+     * Optional per-command latency tracing, enabled with --trace.
+     * The matching thread stamps every successfully parsed command with System.nanoTime() when it was read, parsed,
+     * matched and written, and records the stamps with the start of the command text into a preallocated ring.
+     * In gateway mode the read stamp is taken by the selector thread, so the parse stage includes the wait in the
+     * request queue, and the write stamp when the response is handed back to the selector thread.
+     * A drainer thread appends the ring to the trace file, so the matching thread never does I/O; if the ring is
+     * full the record is dropped and counted rather than waited for.
+     * Each record in the file is the read time as a long, the parse, match and write times as int nanosecond
+     * deltas from the previous stamp, then the text length as a byte and the text in ASCII. On close the file is
+     * ended with END_OF_TRACE in place of a read time, followed by the number of dropped records as a long.
+     */
+    class LatencyTracer {
+        static final int MAX_TEXT_LENGTH = 64;
+        static final long END_OF_TRACE = Long.MIN_VALUE;
+        private static final int CAPACITY = 1 << 16;
+        private static final int STAMP_COUNT = 4;
+
+        private final long[] stamps = new long[CAPACITY * STAMP_COUNT];
+        private final byte[] texts = new byte[CAPACITY * MAX_TEXT_LENGTH];
+        private final int[] textLengths = new int[CAPACITY];
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong droppedCount = new AtomicLong();
+        private final DataOutputStream out;
+        private final Thread drainerThread;
+        private volatile boolean isRunning = true;
+
+        public LatencyTracer(String fileName) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+            drainerThread = new Thread(this::runDrainer, "trace-drainer");
+            drainerThread.setDaemon(true);
+            drainerThread.start();
+        }
+
+        /**
+         * Called by the matching thread only.
+         */
+        public void record(String input, long readTime, long parseTime, long matchTime, long writeTime) {
+            long sequence = head.get();
+            if (sequence - tail.getAcquire() == CAPACITY) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            int slot = (int) sequence & (CAPACITY - 1);
+            int stampIndex = slot * STAMP_COUNT;
+            stamps[stampIndex] = readTime;
+            stamps[stampIndex + 1] = parseTime;
+            stamps[stampIndex + 2] = matchTime;
+            stamps[stampIndex + 3] = writeTime;
+            int textLength = Math.min(input.length(), MAX_TEXT_LENGTH);
+            int textIndex = slot * MAX_TEXT_LENGTH;
+            for (int i = 0; i < textLength; i++) {
+                texts[textIndex + i] = (byte) input.charAt(i);
+            }
+            textLengths[slot] = textLength;
+            head.setRelease(sequence + 1);
+        }
+
+        /**
+         * Writes out everything recorded so far and the dropped count, and closes the file.
+         */
+        public void close() throws IOException {
+            isRunning = false;
+            try {
+                drainerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            out.writeLong(END_OF_TRACE);
+            out.writeLong(droppedCount.get());
+            out.close();
+        }
+
+        private void runDrainer() {
+            try {
+                while (true) {
+                    boolean isStopping = !isRunning;
+                    if (drain() == 0) {
+                        if (isStopping) {
+                            break;
+                        }
+                        out.flush();
+                        LockSupport.parkNanos(1_000_000);
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private int drain() throws IOException {
+            long sequence = tail.get();
+            long lastSequence = head.getAcquire();
+            for (; sequence < lastSequence; sequence++) {
+                int slot = (int) sequence & (CAPACITY - 1);
+                int stampIndex = slot * STAMP_COUNT;
+                out.writeLong(stamps[stampIndex]);
+                for (int i = 1; i < STAMP_COUNT; i++) {
+                    out.writeInt(toDelta(stamps[stampIndex + i] - stamps[stampIndex + i - 1]));
+                }
+                out.writeByte(textLengths[slot]);
+                out.write(texts, slot * MAX_TEXT_LENGTH, textLengths[slot]);
+            }
+            int drainedCount = (int) (lastSequence - tail.get());
+            tail.setRelease(lastSequence);
+            return drainedCount;
+        }
+
+        private int toDelta(long nanos) {
+            return (int) Math.max(0, Math.min(Integer.MAX_VALUE, nanos));
+        }
+    }
+
+    /**
+     * Offline report over a trace file written by LatencyTracer: percentiles of each stage and of the whole
+     * command, then the slowest commands with their text.
+     * Usage: java com.alphalab.matchingengine.OrderMatchingEngine$TraceReport trace-file [slowest-count]
+     */
+    static class TraceReport {
+        private static final String[] STAGE_NAMES = {"parse", "match", "write", "total"};
+        private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+        public static void main(String[] args) throws IOException {
+            int slowestCount = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+            long[][] latencies = new long[STAGE_NAMES.length][1 << 16];
+            int recordCount = 0;
+            long droppedCount = 0;
+            // the slowest commands seen so far, fastest first
+            PriorityQueue<TracedCommand> slowestCommands = new PriorityQueue<>((o1, o2) ->
+                    Long.compare(o1.latencies[3], o2.latencies[3]));
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0]),
+                    1 << 16))) {
+                byte[] text = new byte[LatencyTracer.MAX_TEXT_LENGTH];
+                while (true) {
+                    long readTime;
+                    try {
+                        readTime = in.readLong();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (readTime == LatencyTracer.END_OF_TRACE) {
+                        droppedCount = in.readLong();
+                        break;
+                    }
+                    long[] recordLatencies = new long[STAGE_NAMES.length];
+                    for (int stage = 0; stage < 3; stage++) {
+                        recordLatencies[stage] = in.readInt();
+                        recordLatencies[3] += recordLatencies[stage];
+                    }
+                    int textLength = in.readUnsignedByte();
+                    in.readFully(text, 0, textLength);
+
+                    if (recordCount == latencies[0].length) {
+                        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+                            latencies[stage] = Arrays.copyOf(latencies[stage], recordCount * 2);
+                        }
+                    }
+                    for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+                        latencies[stage][recordCount] = recordLatencies[stage];
+                    }
+                    recordCount++;
+
+                    if (slowestCommands.size() < slowestCount || slowestCount > 0
+                            && recordLatencies[3] > slowestCommands.peek().latencies[3]) {
+                        slowestCommands.add(new TracedCommand(recordLatencies,
+                                new String(text, 0, textLength, StandardCharsets.US_ASCII)));
+                        if (slowestCommands.size() > slowestCount) {
+                            slowestCommands.poll();
+                        }
+                    }
+                }
+            }
+
+            System.out.println(recordCount + " commands, " + droppedCount + " dropped, latencies in ns");
+            StringBuilder header = new StringBuilder(String.format(Locale.ROOT, "%-6s", "stage"));
+            for (double percentile : PERCENTILES) {
+                header.append(String.format(Locale.ROOT, "%12s", "p" + formatPercentile(percentile)));
+            }
+            System.out.println(header.append(String.format(Locale.ROOT, "%12s", "max")));
+            for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+                long[] stageLatencies = Arrays.copyOf(latencies[stage], recordCount);
+                Arrays.sort(stageLatencies);
+                StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%-6s", STAGE_NAMES[stage]));
+                for (double percentile : PERCENTILES) {
+                    line.append(String.format(Locale.ROOT, "%12d", getPercentile(stageLatencies, percentile)));
+                }
+                line.append(String.format(Locale.ROOT, "%12d", recordCount == 0 ? 0 : stageLatencies[recordCount - 1]));
+                System.out.println(line);
+            }
+
+            System.out.println();
+            System.out.println("slowest commands: total parse match write command");
+            List<TracedCommand> slowest = new ArrayList<>(slowestCommands);
+            slowest.sort((o1, o2) -> Long.compare(o2.latencies[3], o1.latencies[3]));
+            for (TracedCommand command : slowest) {
+                System.out.println(String.format(Locale.ROOT, "%12d%12d%12d%12d  %s", command.latencies[3],
+                        command.latencies[0], command.latencies[1], command.latencies[2], command.text));
+            }
+        }
+
+        /**
+         * Stage latencies of one command, in STAGE_NAMES order, with its text.
+         */
+        static class TracedCommand {
+            private final long[] latencies;
+            private final String text;
+
+            public TracedCommand(long[] latencies, String text) {
+                this.latencies = latencies;
+                this.text = text;
+            }
+        }
+
+        private static long getPercentile(long[] sortedLatencies, double percentile) {
+            if (sortedLatencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, index)];
+        }
+
+        private static String formatPercentile(double percentile) {
+            return percentile == (long) percentile ? "" + (long) percentile : "" + percentile;
+        }
+    }
+
+    /**
+     * Assigns the next sequence number to a successfully parsed input line and hands it to the backups.
+     * Prints the book checksum every checksumInterval commands if enabled. Queries change nothing, so they
+     * take no sequence number and are not replicated.
+     */
+    private void sequence(Order parsedOrder, String input) {
+        if (parsedOrder instanceof ImpactQueryOrder) {
+            return;
+        }
+        commandSequence++;
+        if (replicationPublisher != null) {
+            replicationPublisher.publish(commandSequence, input);
+        }
+        if (checksumInterval > 0 && commandSequence % checksumInterval == 0) {
+            System.out.println(Command.CHECKSUM_COMMAND + " " + commandSequence + " "
+                    + formatChecksum(orderBookStorage.getChecksum()));
+        }
+    }
+
+    /**
+     * Returns the current time for the latency tracer, or 0 without a call to System.nanoTime() if tracing is off.
+     */
+    private long stamp() {
+        return latencyTracer == null ? 0 : System.nanoTime();
+    }
+
+    private static String formatChecksum(long checksum) {
+        return String.format("%016x", checksum);
+    }
+
+    /**
+     * Executes a parsed order against the book and returns its output, or null if there is nothing to print.
+     */
+    private String process(Order parsedOrder) {
+        String output;
+        // the risk check reserved the whole quantity; whatever is still open afterwards has been counted again
+        int checkedQuantity = parsedOrder.getQuantity();
+        try {
+            if (parsedOrder instanceof ExitOrder) {
+                output = orderBookStringBuilder.build();
+            } else if (parsedOrder instanceof ImpactQueryOrder) {
+                // read-only, so there is nothing to trigger or publish
+                output = parsedOrder.execute();
+            } else if (callAuction.accepts(parsedOrder)) {
+                output = callAuction.add(parsedOrder);
+                // the command is sequenced after it is processed, so it takes the next number
+                bookView.publish(orderBookStorage, commandSequence + 1);
+            } else {
+                output = parsedOrder.execute();
+                stopOrderIndex.triggerStopOrders();
+                bookView.publish(orderBookStorage, commandSequence + 1);
+            }
+        } finally {
+            riskStage.addOpenQuantity(parsedOrder, -checkedQuantity);
+            orderIdTable.reclaim();
+        }
+        return output;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
         OrderMatchingEngine engine = new OrderMatchingEngine();
+        int gatewayPort = -1;
+        int backupPort = -1;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--port":
+                gatewayPort = Integer.parseInt(args[i + 1]);
+                break;
+            case "--backup":
+                backupPort = Integer.parseInt(args[i + 1]);
+                break;
+            case "--trace":
+                engine.latencyTracer = engine.new LatencyTracer(args[i + 1]);
+                break;
+            case "--snapshot-every":
+                int snapshotInterval = Integer.parseInt(args[i + 1]);
+                if (snapshotInterval < 1) {
+                    throw new IOException("--snapshot-every must be at least 1");
+                }
+                engine.bookView.setSnapshotInterval(snapshotInterval);
+                break;
+            case "--checksum-every":
+                engine.checksumInterval = Integer.parseInt(args[i + 1]);
+                break;
+            case "--replicate-to":
+                if (engine.replicationPublisher == null) {
+                    engine.replicationPublisher = engine.new ReplicationPublisher();
+                }
+                for (String address : args[i + 1].split(",")) {
+                    String[] hostAndPort = address.split(":");
+                    engine.replicationPublisher.addReplica(hostAndPort[0], Integer.parseInt(hostAndPort[1]));
+                }
+                break;
+            default:
+                throw new IOException("Unknown argument " + args[i]);
+            }
+        }
+
+        if (backupPort >= 0) {
+            ReplicaReceiver receiver = engine.new ReplicaReceiver(backupPort);
+            System.out.println("Backup listening on port " + receiver.getLocalPort());
+            receiver.receive();
+            System.out.println("Promoted at sequence " + engine.commandSequence);
+            gatewayPort = Math.max(gatewayPort, 0);
+        }
+
+        if (gatewayPort >= 0) {
+            OrderGateway gateway = engine.new OrderGateway(gatewayPort);
+            gateway.start();
+            System.out.println("Listening on port " + gateway.getLocalPort());
+            gateway.join();
+            return;
+        }
+
         Order parsedOrder;
         String output;
         boolean isEnd = false;
@@ -943,16 +4034,42 @@ public class OrderMatchingEngine {
 
         while (sc.hasNext() && !isEnd) {
             String input = sc.nextLine();
-            parsedOrder = engine.parser.parse(input);
-            if (parsedOrder instanceof ExitOrder) {
-                output = engine.orderBookStringBuilder.build();
-                isEnd = true;
-            } else {
-                output = parsedOrder.execute();
+            long readTime = engine.stamp();
+            String rejection = engine.riskStage.check(input);
+            if (rejection != null) {
+                System.out.println(rejection);
+                continue;
+            }
+            try {
+                parsedOrder = engine.parser.parse(input);
+            } catch (IOException | RuntimeException e) {
+                System.out.println(OrderGateway.ERROR_RESPONSE + " " + e.getMessage());
+                continue;
             }
+            rejection = engine.riskStage.checkReplace(parsedOrder);
+            if (rejection != null) {
+                System.out.println(rejection);
+                continue;
+            }
+            long parseTime = engine.stamp();
+            output = engine.process(parsedOrder);
+            long matchTime = engine.stamp();
+            engine.sequence(parsedOrder, input);
+            isEnd = parsedOrder instanceof ExitOrder;
             if (output != null) {
                 System.out.println(output);
             }
+            if (engine.latencyTracer != null) {
+                engine.latencyTracer.record(input, readTime, parseTime, matchTime, engine.stamp());
+            }
+        }
+
+        if (engine.latencyTracer != null) {
+            engine.latencyTracer.close();
+        }
+
+        if (engine.replicationPublisher != null) {
+            engine.replicationPublisher.close();
         }
     }
 }